@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Measures each front end stage on its own: every benchmark starts from the
+// output of the previous stage, prepared once in setup().
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+    @Param({"fib", "binary_trees", "method_calls", "properties", "strings",
+            "closures"})
+    public String workload;
+
+    private String source;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+    private List<Stmt> resolved;
+
+    @Setup
+    public void setup() {
+        source = Workloads.source(workload);
+        tokens = Workloads.scan(source);
+        statements = Workloads.parse(source);
+        resolved = Workloads.resolve(source);
+    }
+
+    @Benchmark
+    public TokenBuffer scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    // The Resolver only annotates the tree, so resolving the same statements
+    // again does the same work every time.
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    // The Optimizer builds new nodes rather than changing the ones it is
+    // given, so it too can run on the same statements every time.
+    @Benchmark
+    public List<Stmt> optimize() {
+        return new Optimizer().optimize(resolved);
+    }
+}
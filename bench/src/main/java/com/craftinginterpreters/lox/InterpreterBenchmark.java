@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Runs already resolved, and by default optimized, workloads on the
+// tree-walking interpreters. Each workload stores its answer in the global
+// `result`, which is returned so the JIT cannot discard the work.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    private static final Token RESULT =
+        new Token(TokenType.IDENTIFIER, "result", null, 0);
+
+    @Param({"fib", "binary_trees", "method_calls", "properties", "strings",
+            "closures"})
+    public String workload;
+
+    @Param({"ast", "specializing"})
+    public String engine;
+
+    // Whether the Optimizer runs first, as it does unless Lox is run with
+    // `--no-optimize`.
+    @Param({"true", "false"})
+    public boolean optimize;
+
+    private Interpreter interpreter;
+    private List<Stmt> statements;
+
+    @Setup
+    public void setup() {
+        interpreter = engine.equals("specializing") ?
+            new SpecializingInterpreter() : new Interpreter();
+        String source = Workloads.source(workload);
+        statements = optimize ?
+            Workloads.optimize(source) : Workloads.resolve(source);
+    }
+
+    @Benchmark
+    public Object interpret() {
+        interpreter.interpret(statements);
+        if (Lox.hadRuntimeError) {
+            throw new IllegalStateException(workload + " failed");
+        }
+        return Interpreter.globals.get(RESULT);
+    }
+}
@@ -0,0 +1,54 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Loads the Lox programs under src/main/resources/workloads and runs them
+// through the front end up to the requested stage.
+final class Workloads {
+    private Workloads() {}
+
+    static String source(String name) {
+        String path = "/workloads/" + name + ".lox";
+        try (InputStream in = Workloads.class.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No workload " + path);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static TokenBuffer scan(String source) {
+        return new Scanner(source).scanTokens();
+    }
+
+    static List<Stmt> parse(String source) {
+        List<Stmt> statements = new Parser(scan(source)).parse();
+        check(source);
+        return statements;
+    }
+
+    static List<Stmt> resolve(String source) {
+        List<Stmt> statements = parse(source);
+        new Resolver().resolve(statements);
+        check(source);
+        return statements;
+    }
+
+    // The tree as Lox runs it by default.
+    static List<Stmt> optimize(String source) {
+        return new Optimizer().optimize(resolve(source));
+    }
+
+    // Benchmarking a program with syntax errors would measure nothing useful.
+    private static void check(String source) {
+        if (Lox.hadError) {
+            throw new IllegalStateException("Workload has errors:\n" + source);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+// Keeps the syntax trees of scripts on disk, resolved and optimized as they
+// run, so that running a script that hasn't changed skips scanning, parsing,
+// resolving and optimizing it. Each tree is stored by AstWriter in a file
+// named after the SHA-256 hash of the source it came from (and the charset it
+// was decoded with, and whether it was optimized), so an edited script simply
+// misses.
+//
+// Only trees without errors are stored, and the cache is best effort: a
+// file that can't be read, or was written by another version of the format,
+// is a miss, and a tree that can't be written is not cached.
+class AstCache {
+    // Bump when the format or the tree changes, e.g. when a TokenType is
+    // added, since tokens are written by ordinal.
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {
+        'l', 'o', 'x', 'a', 's', 't', 0, VERSION
+    };
+
+    private final Path directory;
+
+    AstCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // Hashes the contents of `file`, as the key to look its tree up with.
+    static String key(Path file, Charset charset, boolean optimized)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(charset.name().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update((byte) (optimized ? 1 : 0));
+        byte[] buffer = new byte[65536];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    // Returns the stored tree, or null if there is none.
+    List<Stmt> get(String key) {
+        Path file = directory.resolve(key + ".ast");
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (i >= bytes.length || bytes[i] != MAGIC[i]) return null;
+            }
+            AstReader reader = new AstReader(bytes, MAGIC.length, bytes.length);
+            List<Stmt> statements = reader.read();
+            return reader.isAtEnd() ? statements : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Stores the tree, which must not have run yet.
+    void put(String key, List<Stmt> statements) {
+        AstWriter writer = new AstWriter();
+        writer.write(statements);
+
+        // Several processes may run the same script at once, so the file is
+        // written under a name of its own and then renamed into place.
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(MAGIC);
+                writer.writeTo(out);
+            }
+            Files.move(temporary, directory.resolve(key + ".ast"),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | UnsupportedOperationException e) {
+            try {
+                if (temporary != null) Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Leave it.
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.AstWriter.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads the trees AstWriter wrote. Input that doesn't follow the format
+// throws an IOException rather than producing a broken tree.
+class AstReader {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final byte[] bytes;
+    private int current;
+    private final int end;
+
+    private final List<String> strings = new ArrayList<>();
+
+    // The line of the last token read.
+    private int line = 0;
+
+    AstReader(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.current = start;
+        this.end = end;
+    }
+
+    boolean isAtEnd() {
+        return current == end;
+    }
+
+    List<Stmt> read() throws IOException {
+        return readStatements();
+    }
+
+    List<Stmt> readStatements() throws IOException {
+        int size = readSize();
+        List<Stmt> statements = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            statements.add(readStmt());
+        }
+        return statements;
+    }
+
+    private List<Stmt.Function> readMethods() throws IOException {
+        int size = readSize();
+        List<Stmt.Function> methods = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Stmt method = readStmt();
+            if (!(method instanceof Stmt.Function)) throw corrupt();
+            methods.add((Stmt.Function) method);
+        }
+        return methods;
+    }
+
+    private List<Expr> readExpressions() throws IOException {
+        int size = readSize();
+        List<Expr> expressions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            expressions.add(readExpr());
+        }
+        return expressions;
+    }
+
+    private List<Token> readTokens() throws IOException {
+        int size = readSize();
+        List<Token> tokens = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tokens.add(readToken());
+        }
+        return tokens;
+    }
+
+    // Statements get their lines like the Resolver gives them, with the
+    // line of the last token before them for those that have none.
+    Stmt readStmt() throws IOException {
+        int before = line;
+        Stmt stmt = readStmtNode();
+        if (stmt != null) stmt.line = Profiler.lineOf(stmt, before);
+        return stmt;
+    }
+
+    private Stmt readStmtNode() throws IOException {
+        switch (readInt()) {
+            case NONE:
+                return null;
+            case EXPRESSION:
+                return new Stmt.Expression(readExpr());
+            case PRINT:
+                return new Stmt.Print(readExpr());
+            case IF:
+                return new Stmt.If(readExpr(), readStmt(), readStmt());
+            case WHILE:
+                return new Stmt.While(readExpr(), readStmt());
+            case FOR: {
+                Stmt.For stmt = new Stmt.For(readToken(), readExpr(),
+                    readToken(), readExpr(), readToken(), readExpr(),
+                    readStmt());
+                stmt.hasClosures = readBoolean();
+                return stmt;
+            }
+            case BREAK:
+                return new Stmt.Break(readToken());
+            case CONTINUE:
+                return new Stmt.Continue(readToken());
+            case RETURN:
+                return new Stmt.Return(readToken(), readExpr());
+            case VAR: {
+                Stmt.Var stmt = new Stmt.Var(readToken(), readExpr());
+                stmt.slot = readInt();
+                stmt.assignments = readInt();
+                stmt.captured = readBoolean();
+                return stmt;
+            }
+            case FUNCTION: {
+                Stmt.Function stmt = new Stmt.Function(readToken(),
+                    readTokens(), readStatements());
+                stmt.slot = readInt();
+                stmt.localCount = readInt();
+                stmt.hasClosures = readBoolean();
+                return stmt;
+            }
+            case CLASS: {
+                Token name = readToken();
+                Expr superclass = readExpr();
+                if (superclass != null &&
+                        !(superclass instanceof Expr.Variable)) {
+                    throw corrupt();
+                }
+                Stmt.Class stmt = new Stmt.Class(name,
+                    (Expr.Variable) superclass, readMethods());
+                stmt.slot = readInt();
+                return stmt;
+            }
+            case BLOCK: {
+                Stmt.Block stmt = new Stmt.Block(readStatements());
+                stmt.localCount = readInt();
+                stmt.hasClosures = readBoolean();
+                return stmt;
+            }
+            case IMPORT:
+                return new Stmt.Import(readToken(), readToken());
+            default:
+                throw corrupt();
+        }
+    }
+
+    Expr readExpr() throws IOException {
+        switch (readInt()) {
+            case NONE:
+                return null;
+            case ASSIGN: {
+                Expr.Assign expr = new Expr.Assign(readToken(), readExpr());
+                expr.depth = readInt();
+                expr.slot = readInt();
+                return expr;
+            }
+            case BINARY: {
+                Expr.Binary expr = new Expr.Binary(readExpr(), readToken(),
+                    readExpr());
+                expr.numeric = readBoolean();
+                return expr;
+            }
+            case TERNARY:
+                return new Expr.Ternary(readExpr(), readToken(), readExpr(),
+                    readToken(), readExpr());
+            case GROUPING: {
+                Expr.Grouping expr = new Expr.Grouping(readExpr());
+                expr.numeric = readBoolean();
+                return expr;
+            }
+            case LITERAL:
+                return new Expr.Literal(readValue());
+            case LOGICAL:
+                return new Expr.Logical(readExpr(), readToken(), readExpr());
+            case UNARY: {
+                Expr.Unary expr = new Expr.Unary(readToken(), readExpr());
+                expr.numeric = readBoolean();
+                return expr;
+            }
+            case CALL: {
+                Expr.Call expr = new Expr.Call(readExpr(), readToken(),
+                    readExpressions());
+                expr.tail = readBoolean();
+                return expr;
+            }
+            case GET:
+                return new Expr.Get(readExpr(), readToken());
+            case SET:
+                return new Expr.Set(readExpr(), readToken(), readExpr());
+            case THIS: {
+                Expr.This expr = new Expr.This(readToken());
+                expr.depth = readInt();
+                expr.slot = readInt();
+                return expr;
+            }
+            case SUPER: {
+                Expr.Super expr = new Expr.Super(readToken(), readToken());
+                expr.depth = readInt();
+                return expr;
+            }
+            case VARIABLE: {
+                Expr.Variable expr = new Expr.Variable(readToken());
+                expr.depth = readInt();
+                expr.slot = readInt();
+                return expr;
+            }
+            default:
+                throw corrupt();
+        }
+    }
+
+    Token readToken() throws IOException {
+        int ordinal = readInt();
+        if (ordinal < 0 || ordinal >= TYPES.length) throw corrupt();
+        TokenType type = TYPES[ordinal];
+        line += readInt();
+        String lexeme = readString();
+        if (type == TokenType.IDENTIFIER) {
+            return new Token(type, Symbol.intern(lexeme), line);
+        }
+        Object literal = null;
+        if (type == TokenType.STRING || type == TokenType.NUMBER) {
+            literal = readValue();
+        }
+        return new Token(type, lexeme, literal, line);
+    }
+
+    Object readValue() throws IOException {
+        return readValue(readInt());
+    }
+
+    // Reads the rest of a value whose tag has been read.
+    Object readValue(int tag) throws IOException {
+        switch (tag) {
+            case NIL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case NUMBER:
+                return Double.longBitsToDouble(readLong());
+            case STRING:
+                return readString();
+            default:
+                throw corrupt();
+        }
+    }
+
+    String readString() throws IOException {
+        int index = readInt();
+        if (index >= 0 && index < strings.size()) {
+            return strings.get(index);
+        }
+        if (index != strings.size()) throw corrupt();
+        int length = readSize();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) readUnsigned();
+        }
+        String string = new String(chars);
+        strings.add(string);
+        return string;
+    }
+
+    boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    int readInt() throws IOException {
+        int value = readUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // A count, which can't be larger than what is left to read.
+    private int readSize() throws IOException {
+        int size = readInt();
+        if (size < 0 || size > end - current) throw corrupt();
+        return size;
+    }
+
+    private int readUnsigned() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw corrupt();
+    }
+
+    private long readLong() throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (readByte() & 0xff);
+        }
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        if (current == end) throw corrupt();
+        return bytes[current++];
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt syntax tree.");
+    }
+}
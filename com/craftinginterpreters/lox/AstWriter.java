@@ -0,0 +1,414 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes resolved syntax trees in a compact binary form that AstReader turns
+// back into the same trees, with the Resolver's annotations. Each node is a
+// tag followed by its children and fields in declaration order. Ints are
+// written as zigzag varints, token lines as the difference to the line of
+// the token before, and each distinct string (lexemes and string literals)
+// is written once, then referred to by its index.
+//
+// What the engines learn at runtime, like the specialization of operators
+// and the property caches, is not written.
+class AstWriter implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Expression tags. 0 stands for a missing node of either kind.
+    static final int NONE = 0;
+    static final int ASSIGN = 1;
+    static final int BINARY = 2;
+    static final int TERNARY = 3;
+    static final int GROUPING = 4;
+    static final int LITERAL = 5;
+    static final int LOGICAL = 6;
+    static final int UNARY = 7;
+    static final int CALL = 8;
+    static final int GET = 9;
+    static final int SET = 10;
+    static final int THIS = 11;
+    static final int SUPER = 12;
+    static final int VARIABLE = 13;
+
+    // Statement tags.
+    static final int EXPRESSION = 1;
+    static final int PRINT = 2;
+    static final int IF = 3;
+    static final int WHILE = 4;
+    static final int FOR = 5;
+    static final int BREAK = 6;
+    static final int CONTINUE = 7;
+    static final int RETURN = 8;
+    static final int VAR = 9;
+    static final int FUNCTION = 10;
+    static final int CLASS = 11;
+    static final int BLOCK = 12;
+    static final int IMPORT = 13;
+
+    // Value tags, for literals.
+    static final int NIL = 0;
+    static final int FALSE = 1;
+    static final int TRUE = 2;
+    static final int NUMBER = 3;
+    static final int STRING = 4;
+
+    private byte[] bytes = new byte[4096];
+    private int count = 0;
+
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    // The line of the last token written.
+    private int line = 0;
+
+    void write(List<Stmt> statements) {
+        writeStatements(statements);
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, count);
+    }
+
+    void writeStatements(List<? extends Stmt> statements) {
+        writeInt(statements.size());
+        for (Stmt statement : statements) {
+            write(statement);
+        }
+    }
+
+    void write(Stmt stmt) {
+        if (stmt == null) {
+            writeInt(NONE);
+        } else {
+            stmt.accept(this);
+        }
+    }
+
+    void write(Expr expr) {
+        if (expr == null) {
+            writeInt(NONE);
+        } else {
+            expr.accept(this);
+        }
+    }
+
+    private void writeExpressions(List<Expr> expressions) {
+        writeInt(expressions.size());
+        for (Expr expr : expressions) {
+            write(expr);
+        }
+    }
+
+    void write(Token token) {
+        writeInt(token.type.ordinal());
+        writeInt(token.line - line);
+        line = token.line;
+        writeString(token.lexeme);
+        if (token.type == TokenType.STRING ||
+                token.type == TokenType.NUMBER) {
+            writeValue(token.literal);
+        }
+    }
+
+    private void writeTokens(List<Token> tokens) {
+        writeInt(tokens.size());
+        for (Token token : tokens) {
+            write(token);
+        }
+    }
+
+    void writeValue(Object value) {
+        if (value == null) {
+            writeInt(NIL);
+        } else if (value instanceof Boolean) {
+            writeInt((boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            writeInt(NUMBER);
+            writeLong(Double.doubleToRawLongBits((double) value));
+        } else {
+            writeInt(STRING);
+            writeString(value.toString());
+        }
+    }
+
+    void writeString(String string) {
+        Integer index = strings.get(string);
+        if (index != null) {
+            writeInt(index);
+            return;
+        }
+        writeInt(strings.size());
+        strings.put(string, strings.size());
+        writeInt(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            writeUnsigned(string.charAt(i));
+        }
+    }
+
+    void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    void writeInt(int value) {
+        writeUnsigned((value << 1) ^ (value >> 31));
+    }
+
+    private void writeUnsigned(int value) {
+        while ((value & ~0x7f) != 0) {
+            writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private void writeLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((int) (value >>> shift));
+        }
+    }
+
+    private void writeByte(int b) {
+        if (count == bytes.length) {
+            bytes = Arrays.copyOf(bytes, count * 2);
+        }
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        writeInt(ASSIGN);
+        write(expr.name);
+        write(expr.value);
+        writeInt(expr.depth);
+        writeInt(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        writeInt(BINARY);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        writeBoolean(expr.numeric);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        writeInt(TERNARY);
+        write(expr.left);
+        write(expr.leftOperator);
+        write(expr.middle);
+        write(expr.rightOperator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        writeInt(GROUPING);
+        write(expr.expression);
+        writeBoolean(expr.numeric);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        writeInt(LITERAL);
+        writeValue(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        writeInt(LOGICAL);
+        write(expr.left);
+        write(expr.operator);
+        write(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        writeInt(UNARY);
+        write(expr.operator);
+        write(expr.right);
+        writeBoolean(expr.numeric);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        writeInt(CALL);
+        write(expr.callee);
+        write(expr.paren);
+        writeExpressions(expr.arguments);
+        writeBoolean(expr.tail);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        writeInt(GET);
+        write(expr.object);
+        write(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        writeInt(SET);
+        write(expr.object);
+        write(expr.name);
+        write(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        writeInt(THIS);
+        write(expr.keyword);
+        writeInt(expr.depth);
+        writeInt(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        writeInt(SUPER);
+        write(expr.keyword);
+        write(expr.method);
+        writeInt(expr.depth);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        writeInt(VARIABLE);
+        write(expr.name);
+        writeInt(expr.depth);
+        writeInt(expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        writeInt(EXPRESSION);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        writeInt(PRINT);
+        write(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        writeInt(IF);
+        write(stmt.condition);
+        write(stmt.thenBranch);
+        write(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        writeInt(WHILE);
+        write(stmt.condition);
+        write(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        writeInt(FOR);
+        write(stmt.name);
+        write(stmt.initializer);
+        write(stmt.comparison);
+        write(stmt.limit);
+        write(stmt.increment);
+        write(stmt.step);
+        write(stmt.body);
+        writeBoolean(stmt.hasClosures);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        writeInt(BREAK);
+        write(stmt.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        writeInt(CONTINUE);
+        write(stmt.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        writeInt(RETURN);
+        write(stmt.keyword);
+        write(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        writeInt(VAR);
+        write(stmt.name);
+        write(stmt.initializer);
+        writeInt(stmt.slot);
+        writeInt(stmt.assignments);
+        writeBoolean(stmt.captured);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        writeInt(FUNCTION);
+        write(stmt.name);
+        writeTokens(stmt.params);
+        writeStatements(stmt.body);
+        writeInt(stmt.slot);
+        writeInt(stmt.localCount);
+        writeBoolean(stmt.hasClosures);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        writeInt(CLASS);
+        write(stmt.name);
+        write(stmt.superclass);
+        writeStatements(stmt.methods);
+        writeInt(stmt.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        writeInt(BLOCK);
+        writeStatements(stmt.statements);
+        writeInt(stmt.localCount);
+        writeBoolean(stmt.hasClosures);
+        return null;
+    }
+
+    // The module an import refers to is found again by the loader.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        writeInt(IMPORT);
+        write(stmt.keyword);
+        write(stmt.path);
+        return null;
+    }
+}
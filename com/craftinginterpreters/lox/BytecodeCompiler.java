@@ -0,0 +1,730 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Compiles resolved statements into bytecode for the VM. Local variables are
+// assigned to stack slots and captured variables to upvalues here, so the VM
+// never looks up a local by name.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        // Number of locals that were in scope when the loop was entered. A
+        // `break` or `continue` discards everything above this.
+        final int localCount;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int localCount) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.localCount = localCount;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VmFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VmFunction function,
+                FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the receiver in methods and the callee itself in
+            // other functions.
+            if (type == FunctionType.METHOD ||
+                    type == FunctionType.INITIALIZER) {
+                locals.add(new Local("this", 0));
+            } else {
+                locals.add(new Local("", 0));
+            }
+        }
+    }
+
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+    private static final int MAX_SHORT = 0xffff;
+
+    // Owns the globals that the compiled code refers to.
+    private final VM vm;
+
+    private FunctionState current;
+
+    // Source line attributed to the bytes being emitted.
+    private int line = 1;
+
+    BytecodeCompiler(VM vm) {
+        this.vm = vm;
+    }
+
+    VmFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VmFunction(null),
+            FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emit(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emit(int b1, int b2) {
+        emit(b1);
+        emit(b2);
+    }
+
+    private void emitShort(int value) {
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    private void emitWithConstant(byte op, int constant) {
+        emit(op);
+        emitShort(constant);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emit(0xff);
+        emit(0xff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_SHORT) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if (offset > MAX_SHORT) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if (constant > MAX_SHORT) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emitDiscard(locals.remove(locals.size() - 1));
+        }
+    }
+
+    private void emitDiscard(Local local) {
+        if (local.isCaptured) {
+            emit(OpCode.CLOSE_UPVALUE);
+        } else {
+            emit(OpCode.POP);
+        }
+    }
+
+    // Emits code that discards the locals of every scope nested in the
+    // innermost loop, without forgetting them at compile time. Used when
+    // `break` and `continue` jump out of those scopes.
+    private void discardLoopLocals() {
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= current.loop.localCount; i--) {
+            emitDiscard(locals.get(i));
+        }
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == MAX_LOCALS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        // Marked as uninitialized (-1) until the initializer is compiled.
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        addLocal(name);
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth =
+            current.scopeDepth;
+    }
+
+    // The constant holding the global variable `name`, for GET_GLOBAL,
+    // SET_GLOBAL and DEFINE_GLOBAL.
+    private int globalConstant(Token name) {
+        return makeConstant(vm.global(name.lexeme));
+    }
+
+    // A constant of its own for the inline cache of a property instruction.
+    private int cacheConstant(Token name) {
+        return makeConstant(new VmPropertyCache(name.symbol));
+    }
+
+    private void defineVariable(int global) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitWithConstant(OpCode.DEFINE_GLOBAL, global);
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name.lexeme);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, name, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, name, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, Token name, int index,
+            boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void namedVariable(Token name, Expr value) {
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name.lexeme);
+        boolean wide = false;
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            arg = globalConstant(name);
+            getOp = OpCode.GET_GLOBAL;
+            setOp = OpCode.SET_GLOBAL;
+            wide = true;
+        }
+
+        if (value != null) {
+            compile(value);
+        }
+
+        line = name.line;
+        emit(value != null ? setOp : getOp);
+        if (wide) {
+            emitShort(arg);
+        } else {
+            emit(arg);
+        }
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        FunctionState state = new FunctionState(current,
+            new VmFunction(stmt.name.lexeme), type);
+        current = state;
+        beginScope();
+
+        for (Token param : stmt.params) {
+            state.function.arity++;
+            declareVariable(param);
+            markInitialized();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        // No endScope(): returning from the function discards its slots.
+        current = state.enclosing;
+        state.function.upvalueCount = state.upvalues.size();
+
+        line = stmt.name.line;
+        emitWithConstant(OpCode.CLOSURE, makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0, upvalue.index);
+        }
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) {
+            compile(stmt.elseBranch);
+        }
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+
+        Loop loop = new Loop(current.loop, loopStart, current.locals.size());
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+
+        // Breaks jump past the POP: the condition is not on the stack then.
+        for (int breakJump : loop.breakJumps) {
+            patchJump(breakJump);
+        }
+        return null;
+    }
+
+    // Counted loops have no instructions of their own. They compile like the
+    // block and while loop they were recognized from.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Expr condition = new Expr.Binary(new Expr.Variable(stmt.name),
+            stmt.comparison, stmt.limit);
+        Expr increment = new Expr.Assign(stmt.name, new Expr.Binary(
+            new Expr.Variable(stmt.name), stmt.increment, stmt.step));
+        return visitBlockStmt(new Stmt.Block(Arrays.asList(
+            new Stmt.Var(stmt.name, stmt.initializer),
+            new Stmt.While(condition, new Stmt.Block(Arrays.asList(
+                stmt.body,
+                new Stmt.Expression(increment)
+            )))
+        )));
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        discardLoopLocals();
+        current.loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        line = stmt.keyword.line;
+        discardLoopLocals();
+        emitLoop(current.loop.start);
+        return null;
+    }
+
+    // A module is compiled into a script function of its own the first time
+    // an import of it is compiled. IMPORT calls it unless it has run already.
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        line = stmt.keyword.line;
+        Module module = stmt.module;
+        if (!module.compiled && !module.executed) {
+            // Marked first, so an import cycle ends here.
+            module.compiled = true;
+            module.function = new BytecodeCompiler(vm).compile(module.statements);
+        }
+        emitWithConstant(OpCode.IMPORT, makeConstant(module));
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        int global = current.scopeDepth == 0 ?
+            globalConstant(stmt.name) : 0;
+        declareVariable(stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+
+        line = stmt.name.line;
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+
+        emitWithConstant(OpCode.CLASS, nameConstant);
+        defineVariable(current.scopeDepth == 0 ?
+            globalConstant(stmt.name) : 0);
+
+        if (stmt.superclass != null) {
+            namedVariable(stmt.superclass.name, null);
+
+            beginScope();
+            addLocal(new Token(TokenType.SUPER, "super", null,
+                stmt.superclass.name.line));
+            markInitialized();
+
+            namedVariable(stmt.name, null);
+            line = stmt.superclass.name.line;
+            emit(OpCode.INHERIT);
+        }
+
+        namedVariable(stmt.name, null);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                type = FunctionType.INITIALIZER;
+            }
+            function(method, type);
+            emitWithConstant(OpCode.METHOD, makeConstant(method.name.symbol));
+        }
+        emit(OpCode.POP);
+
+        if (stmt.superclass != null) {
+            endScope();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        int global = current.scopeDepth == 0 ?
+            globalConstant(stmt.name) : 0;
+        declareVariable(stmt.name);
+        // Eagerly initialized so the function can refer to itself.
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(global);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        namedVariable(expr.name, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case PLUS: emit(OpCode.ADD); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case BANG_EQUAL: emit(OpCode.EQUAL, OpCode.NOT); break;
+            default:
+                // Should be unreachable.
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.left);
+
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.middle);
+
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emit(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emit(OpCode.FALSE);
+        } else {
+            emitWithConstant(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.AND) {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.BANG) {
+            emit(OpCode.NOT);
+        } else {
+            emit(OpCode.NEGATE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // Method calls look the method up before the arguments are evaluated
+        // (like the tree-walker does), but without allocating a bound method.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            line = get.name.line;
+            emitWithConstant(OpCode.LOAD_METHOD, cacheConstant(get.name));
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            loadSuper(superExpr);
+            line = superExpr.method.line;
+            emitWithConstant(OpCode.LOAD_SUPER_METHOD,
+                cacheConstant(superExpr.method));
+        } else {
+            compile(expr.callee);
+        }
+
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        // Calls in tail position reuse the frame of the function making
+        // them. The RETURN after them is only reached when the callee isn't
+        // a Lox function.
+        line = expr.paren.line;
+        if (expr.callee instanceof Expr.Get ||
+                expr.callee instanceof Expr.Super) {
+            emit(expr.tail ? OpCode.TAIL_CALL_METHOD : OpCode.CALL_METHOD,
+                expr.arguments.size());
+        } else {
+            emit(expr.tail ? OpCode.TAIL_CALL : OpCode.CALL,
+                expr.arguments.size());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitWithConstant(OpCode.GET_PROPERTY, cacheConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitWithConstant(OpCode.SET_PROPERTY, cacheConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable(expr.keyword, null);
+        return null;
+    }
+
+    private void loadSuper(Expr.Super expr) {
+        namedVariable(new Token(TokenType.THIS, "this", null,
+            expr.keyword.line), null);
+        namedVariable(expr.keyword, null);
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        loadSuper(expr);
+        line = expr.method.line;
+        emitWithConstant(OpCode.GET_SUPER, cacheConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name, null);
+        return null;
+    }
+}
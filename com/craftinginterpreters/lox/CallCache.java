@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Inline cache of the Lox functions a single call site (Expr.Call) calls.
+// The number of arguments of a site never changes, so whether a function can
+// be called with them only has to be checked the first time its code is
+// seen. The cache keys functions by their declaration and kind rather than
+// by the LoxFunction, which closures and bound methods create afresh, so a
+// site calling a callback stays monomorphic, and the cache keeps no
+// closure, environment or receiver alive. Calling a function whose code was
+// seen before costs a few comparisons, without arity() or dispatch through
+// LoxCallable. Classes and natives are checked on every call.
+class CallCache {
+    // Beyond this many declarations the site is megamorphic and stops
+    // caching.
+    private static final int MAX_ENTRIES = 4;
+
+    private final Stmt.Function[] declarations =
+        new Stmt.Function[MAX_ENTRIES];
+    private final boolean[] methods = new boolean[MAX_ENTRIES];
+    private final boolean[] initializers = new boolean[MAX_ENTRIES];
+    private int size = 0;
+
+    // Calls `callee` with `arguments`, which have been evaluated, and
+    // reports errors at `paren`. `receiver` is the instance a method is
+    // called on, used when the callee is an unbound method. With `tail` set,
+    // calls to Lox functions are returned as a Completion.TailCall instead.
+    Object call(Interpreter interpreter, Object callee, LoxInstance receiver,
+            List<Object> arguments, Token paren, boolean tail) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            for (int i = 0; i < size; i++) {
+                if (declarations[i] == function.declaration &&
+                        methods[i] == function.isMethod &&
+                        initializers[i] == function.isInitializer) {
+                    return call(interpreter, function, receiver, arguments,
+                        paren, tail);
+                }
+            }
+        }
+
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Expression is not callable.");
+        }
+        LoxCallable callable = (LoxCallable) callee;
+        if (arguments.size() != callable.arity()) {
+            throw new RuntimeError(paren, "Expected " + callable.arity() +
+                " arguments, but got " + arguments.size() + ".");
+        }
+
+        if (!(callee instanceof LoxFunction)) {
+            return callable.call(interpreter, arguments, paren);
+        }
+        LoxFunction function = (LoxFunction) callee;
+        if (size < MAX_ENTRIES) {
+            declarations[size] = function.declaration;
+            methods[size] = function.isMethod;
+            initializers[size] = function.isInitializer;
+            size++;
+        }
+        return call(interpreter, function, receiver, arguments, paren, tail);
+    }
+
+    private static Object call(Interpreter interpreter, LoxFunction function,
+            LoxInstance receiver, List<Object> arguments, Token paren,
+            boolean tail) {
+        // Bound methods and functions bring their own receiver, if any.
+        if (!function.isUnboundMethod()) {
+            receiver = function.receiver;
+        }
+        if (tail) {
+            return new Completion.TailCall(function, receiver, arguments);
+        }
+        return function.invoke(interpreter, receiver, arguments, paren);
+    }
+}
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A sequence of bytecode together with its constant pool and, for every byte,
+// the source line it was compiled from (used for runtime error reporting).
+class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    // Returns the index of the constant, reusing an existing slot for equal
+    // numbers and strings and for the same global variable or name.
+    int addConstant(Object value) {
+        if (value instanceof Double || value instanceof String ||
+                value instanceof VmGlobal || value instanceof Symbol) {
+            for (int i = 0; i < constantCount; i++) {
+                if (value.equals(constants[i])) {
+                    return i;
+                }
+            }
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+}
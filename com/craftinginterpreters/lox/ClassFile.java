@@ -0,0 +1,482 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes the class files of the classes JitCompiler generates. Only what
+// those need is supported: a constant pool, and methods with their code but
+// no exception handlers, fields or debugging information.
+//
+// Classes are version 49, the last one the JVM verifies by inferring the
+// types in the frames itself, so no stack map frames have to be computed.
+final class ClassFile {
+    private static final int VERSION = 49;
+
+    // Access flags.
+    static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Opcodes.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int ICONST_1 = 0x04;
+    static final int DCONST_0 = 0x0e;
+    static final int DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int DLOAD = 0x18;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int DSTORE = 0x39;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int ATHROW = 0xbf;
+    static final int CHECKCAST = 0xc0;
+    static final int INSTANCEOF = 0xc1;
+    private static final int WIDE = 0xc4;
+
+    // Constant pool tags.
+    private static final int UTF8 = 1;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final Bytes pool = new Bytes();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Code> methods = new ArrayList<>();
+
+    // Class names are internal names, like "java/lang/Object".
+    ClassFile(String name, String superName) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+    }
+
+    // Adds a method, whose code is then emitted with the returned Code.
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, name, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    // Throws IllegalStateException if the class is too large for the format.
+    byte[] toBytes() {
+        int codeName = utf8("Code");
+        for (Code method : methods) {
+            method.finish();
+        }
+
+        Bytes out = new Bytes();
+        out.u4(0xcafebabe);
+        out.u2(0);
+        out.u2(VERSION);
+        out.u2(poolCount);
+        out.append(pool);
+        out.u2(ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0); // Interfaces.
+        out.u2(0); // Fields.
+        out.u2(methods.size());
+        for (Code method : methods) {
+            out.u2(method.access);
+            out.u2(method.name);
+            out.u2(method.descriptor);
+            out.u2(1);
+            out.u2(codeName);
+            out.u4(12 + method.bytes.length);
+            out.u2(method.maxStack);
+            out.u2(method.locals);
+            out.u4(method.bytes.length);
+            out.append(method.bytes);
+            out.u2(0); // Exception handlers.
+            out.u2(0); // Attributes.
+        }
+        out.u2(0);
+        return out.toByteArray();
+    }
+
+    private int utf8(String value) {
+        String key = "U" + value;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        pool.u1(UTF8);
+        pool.utf(value);
+        return add(key, 1);
+    }
+
+    private int classRef(String name) {
+        String key = "C" + name;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        int utf8 = utf8(name);
+        pool.u1(CLASS);
+        pool.u2(utf8);
+        return add(key, 1);
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        pool.u1(DOUBLE);
+        pool.u4((int) (bits >>> 32));
+        pool.u4((int) bits);
+        // Doubles take two entries.
+        return add(key, 2);
+    }
+
+    private int memberRef(int tag, String owner, String name,
+            String descriptor) {
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+
+        int ownerClass = classRef(owner);
+        String typeKey = "N" + name + ":" + descriptor;
+        Integer nameAndType = constants.get(typeKey);
+        if (nameAndType == null) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            pool.u1(NAME_AND_TYPE);
+            pool.u2(nameIndex);
+            pool.u2(descriptorIndex);
+            nameAndType = add(typeKey, 1);
+        }
+        pool.u1(tag);
+        pool.u2(ownerClass);
+        pool.u2(nameAndType);
+        return add(key, 1);
+    }
+
+    private int add(String key, int entries) {
+        int index = poolCount;
+        poolCount += entries;
+        if (poolCount > 0xffff) {
+            throw new IllegalStateException("Too many constants.");
+        }
+        constants.put(key, index);
+        return index;
+    }
+
+    // The number of stack or local slots the values of a field descriptor,
+    // or of the parameters of a method descriptor, take.
+    private static int slots(String descriptor) {
+        int slots = 0;
+        for (int i = 0; i < descriptor.length(); i++) {
+            switch (descriptor.charAt(i)) {
+                case '(':
+                    break;
+                case ')':
+                    return slots;
+                case 'D':
+                case 'J':
+                    slots += 2;
+                    break;
+                case 'L':
+                    slots++;
+                    i = descriptor.indexOf(';', i);
+                    break;
+                case '[':
+                    while (descriptor.charAt(i + 1) == '[') i++;
+                    if (descriptor.charAt(i + 1) == 'L') {
+                        i = descriptor.indexOf(';', i);
+                    } else {
+                        i++;
+                    }
+                    slots++;
+                    break;
+                case 'V':
+                    break;
+                default:
+                    slots++;
+                    break;
+            }
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        return slots(descriptor.substring(descriptor.indexOf(')') + 1));
+    }
+
+    // A position in the code that jumps go to. Records the stack depth
+    // there, since code after an unconditional jump only knows it from the
+    // jumps to it.
+    static final class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<int[]> jumps = new ArrayList<>();
+        private boolean used = false;
+    }
+
+    // The code of a method. Keeps track of the stack depth as instructions
+    // are added, and hands out local slots after the parameters.
+    final class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+
+        private Bytes code = new Bytes();
+        private byte[] bytes;
+        private final List<Label> labels = new ArrayList<>();
+
+        private int stack = 0;
+        private int maxStack = 0;
+        private int locals;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.locals = 1 + slots(descriptor);
+        }
+
+        // Reserves `size` local slots and returns the first.
+        int newLocal(int size) {
+            int index = locals;
+            locals += size;
+            if (locals > 0xffff) {
+                throw new IllegalStateException("Too many locals.");
+            }
+            return index;
+        }
+
+        // An instruction without operands, changing the stack depth by
+        // `effect`.
+        void op(int opcode, int effect) {
+            code.u1(opcode);
+            adjust(effect);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                code.u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.u1(BIPUSH);
+                code.u1(value);
+            } else {
+                code.u1(SIPUSH);
+                code.u2(value);
+            }
+            adjust(1);
+        }
+
+        void dconst(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                code.u1(DCONST_0);
+            } else if (value == 1.0) {
+                code.u1(DCONST_1);
+            } else {
+                code.u1(LDC2_W);
+                code.u2(doubleConstant(value));
+            }
+            adjust(2);
+        }
+
+        // ILOAD, DLOAD, ALOAD and the stores.
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                code.u1(WIDE);
+                code.u1(opcode);
+                code.u2(index);
+            } else {
+                code.u1(opcode);
+                code.u1(index);
+            }
+            switch (opcode) {
+                case ILOAD: case ALOAD: adjust(1); break;
+                case DLOAD: adjust(2); break;
+                case ISTORE: case ASTORE: adjust(-1); break;
+                default: adjust(-2); break;
+            }
+        }
+
+        // CHECKCAST, INSTANCEOF and ANEWARRAY.
+        void type(int opcode, String className) {
+            code.u1(opcode);
+            code.u2(classRef(className));
+        }
+
+        void field(int opcode, String owner, String name, String type) {
+            code.u1(opcode);
+            code.u2(memberRef(FIELDREF, owner, name, type));
+            int size = slots(type);
+            adjust(opcode == GETSTATIC ? size : size - 1);
+        }
+
+        void invoke(int opcode, String owner, String name,
+                String descriptor) {
+            int arguments = slots(descriptor);
+            code.u1(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                code.u2(memberRef(INTERFACE_METHODREF, owner, name,
+                    descriptor));
+                code.u1(arguments + 1);
+                code.u1(0);
+            } else {
+                code.u2(memberRef(METHODREF, owner, name, descriptor));
+            }
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+            adjust(returnSlots(descriptor) - arguments - receiver);
+        }
+
+        // Jumps, conditional or not, to `label`.
+        void jump(int opcode, Label label) {
+            int position = code.length();
+            code.u1(opcode);
+            code.u2(0);
+            label.jumps.add(new int[] {position, position + 1});
+            use(label);
+            adjust(opcode == GOTO ? 0 : -1);
+            label.stack = stack;
+        }
+
+        void bind(Label label) {
+            label.position = code.length();
+            use(label);
+            // Code right after an unconditional jump or return is only
+            // reached by jumping, with the stack the jumps had.
+            if (label.stack >= 0) stack = label.stack;
+        }
+
+        // The code after this is only reached through labels bound later.
+        void unreachable() {
+            stack = 0;
+        }
+
+        private void use(Label label) {
+            if (!label.used) {
+                label.used = true;
+                labels.add(label);
+            }
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void finish() {
+            bytes = code.toByteArray();
+            if (bytes.length > 0xffff) {
+                throw new IllegalStateException("Method too large.");
+            }
+            for (Label label : labels) {
+                for (int[] jump : label.jumps) {
+                    int offset = label.position - jump[0];
+                    if (label.position < 0 ||
+                            offset != (short) offset) {
+                        throw new IllegalStateException("Jump too far.");
+                    }
+                    bytes[jump[1]] = (byte) (offset >> 8);
+                    bytes[jump[1] + 1] = (byte) offset;
+                }
+            }
+            code = null;
+        }
+    }
+
+    private static final class Bytes {
+        private byte[] bytes = new byte[256];
+        private int count = 0;
+
+        int length() {
+            return count;
+        }
+
+        void u1(int value) {
+            if (count == bytes.length) {
+                bytes = Arrays.copyOf(bytes, count * 2);
+            }
+            bytes[count++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        // Modified UTF-8, as the constant pool uses.
+        void utf(String value) {
+            Bytes encoded = new Bytes();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x01 && c <= 0x7f) {
+                    encoded.u1(c);
+                } else if (c <= 0x7ff) {
+                    encoded.u1(0xc0 | (c >> 6));
+                    encoded.u1(0x80 | (c & 0x3f));
+                } else {
+                    encoded.u1(0xe0 | (c >> 12));
+                    encoded.u1(0x80 | ((c >> 6) & 0x3f));
+                    encoded.u1(0x80 | (c & 0x3f));
+                }
+            }
+            if (encoded.count > 0xffff) {
+                throw new IllegalStateException("Constant too long.");
+            }
+            u2(encoded.count);
+            append(encoded);
+        }
+
+        void append(Bytes other) {
+            append(other.toByteArray());
+        }
+
+        void append(byte[] other) {
+            for (byte b : other) {
+                u1(b);
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// The code JitCompiler generated for a Lox function, which runs it the way
+// LoxFunction.invoke() would interpret it. The generated classes extend this
+// one and call the static methods here for everything that isn't worth
+// generating inline, which behave like the Interpreter, errors included.
+abstract class CompiledFunction {
+    // Returned by call() when the arguments are not of the types the code
+    // was compiled for. Nothing has run yet, so the call can be interpreted
+    // instead.
+    static final Object DEOPT = new Object();
+
+    // Tokens, literals and property caches the code refers to.
+    final Object[] constants;
+
+    final Stmt.Function declaration;
+
+    CompiledFunction(Object[] constants, Stmt.Function declaration) {
+        this.constants = constants;
+        this.declaration = declaration;
+    }
+
+    // Runs the function with arguments the caller checked the number of.
+    // Returns its result, a Completion.TailCall for a call in tail position
+    // that LoxFunction.invoke() has to make, or DEOPT.
+    abstract Object call(Interpreter interpreter, List<Object> arguments);
+
+    // Whether `callee` runs this same code, so the call can be made directly.
+    final boolean isSelf(Object callee) {
+        return callee instanceof LoxFunction &&
+            ((LoxFunction) callee).declaration == declaration;
+    }
+
+    static Object global(Token name) {
+        return Interpreter.globals.get(name);
+    }
+
+    static Object assignGlobal(Object value, Token name) {
+        Interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static double toDouble(Object value, Token operator) {
+        if (!(value instanceof Double)) {
+            throw notNumbers(operator);
+        }
+        return (double) value;
+    }
+
+    static RuntimeError notNumbers(Token operator) {
+        return new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        return Interpreter.binaryOperation(operator, left, right);
+    }
+
+    static Object add(double left, Object right, Token operator) {
+        if (right instanceof Double) {
+            return left + (double) right;
+        }
+        return Interpreter.binaryOperation(operator, left, right);
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if (right == 0.0) {
+            throw new RuntimeError(operator, "Cannot divide by zero.");
+        }
+        return left / right;
+    }
+
+    // Numbers are equal like Doubles are, so NaN equals itself and 0 doesn't
+    // equal -0.
+    static boolean equal(double left, double right) {
+        return Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+    }
+
+    static boolean equal(double left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object get(Object object, Expr.Get expr) {
+        if (object instanceof LoxInstance) {
+            return expr.cache.get((LoxInstance) object, expr.name);
+        }
+        throw new RuntimeError(expr.name, "Only instances have properties.");
+    }
+
+    // The receiver of a method call.
+    static LoxInstance receiver(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object method(LoxInstance receiver, Expr.Get expr) {
+        return expr.cache.getUnbound(receiver, expr.name);
+    }
+
+    // The object of a property assignment.
+    static LoxInstance instance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance) object;
+    }
+
+    static Object set(LoxInstance instance, Object value, Expr.Set expr) {
+        expr.cache.set(instance, expr.name, value);
+        return value;
+    }
+
+    // Steps the variable of a Stmt.For by a value that isn't a number.
+    static Object step(double value, Object step, Token increment) {
+        return Interpreter.binaryOperation(increment, value, step);
+    }
+
+    // Makes a call like Interpreter.call() does once it has evaluated the
+    // callee and the arguments, through the site's cache. `receiver` is set
+    // for method calls.
+    static Object call(Interpreter interpreter, Object callee,
+            LoxInstance receiver, Object[] arguments, Expr.Call expr,
+            boolean tail) {
+        return expr.cache.call(interpreter, callee, receiver,
+            Arrays.asList(arguments), expr.paren, tail);
+    }
+
+    // Finishes a direct call that isn't in tail position, whose code may
+    // have returned a tail call of its own.
+    static Object complete(Object result, Interpreter interpreter,
+            Token paren) {
+        if (result instanceof Completion.TailCall) {
+            Completion.TailCall call = (Completion.TailCall) result;
+            return call.function.invoke(interpreter, call.receiver,
+                call.arguments, paren);
+        }
+        return result;
+    }
+}
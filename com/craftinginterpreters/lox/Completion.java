@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// How a statement finished executing. Blocks pass anything but NORMAL on to
+// their enclosing statement, loops consume BREAK and CONTINUE, and function
+// calls consume returns, so no interpreter state is needed to unwind.
+class Completion {
+    static final Completion NORMAL = new Completion(null);
+    static final Completion BREAK = new Completion(null);
+    static final Completion CONTINUE = new Completion(null);
+    // `return;` and `return nil;` share one instance.
+    private static final Completion RETURN_NIL = new Completion(null);
+
+    // The returned value, for returns. Null for everything else.
+    final Object value;
+
+    private Completion(Object value) {
+        this.value = value;
+    }
+
+    static Completion returning(Object value) {
+        return value == null ? RETURN_NIL : new Completion(value);
+    }
+
+    // A `return f(...)` whose call to a Lox function has not been made yet.
+    // LoxFunction.invoke runs it in place of the returning call, so tail
+    // calls do not grow the Java stack.
+    static final class TailCall extends Completion {
+        final LoxFunction function;
+        final LoxInstance receiver;
+        final List<Object> arguments;
+
+        TailCall(LoxFunction function, LoxInstance receiver,
+                List<Object> arguments) {
+            super(null);
+            this.function = function;
+            this.receiver = receiver;
+            this.arguments = arguments;
+        }
+    }
+}
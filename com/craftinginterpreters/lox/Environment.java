@@ -4,19 +4,33 @@ import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
-    public final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final Object[] NO_VALUES = new Object[0];
+
+    // Not final so that EnvironmentPool can reuse the object for another
+    // frame.
+    Environment enclosing;
+
+    // Local variables, indexed by the slot the Resolver assigned to them.
+    final Object[] values;
+
+    // Only the global environment looks its variables up by name, because
+    // globals are not resolved statically.
+    final Map<Symbol, Object> globals;
 
     public Environment() {
         enclosing = null;
+        values = NO_VALUES;
+        globals = new HashMap<>();
     }
 
-    public Environment(Environment enclosing) {
+    public Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        this.values = size == 0 ? NO_VALUES : new Object[size];
+        this.globals = null;
     }
 
-    public void define(String name, Object value) {
-        values.put(name, value);
+    public void define(Symbol name, Object value) {
+        globals.put(name, value);
     }
 
     Environment ancestor(int distance) {
@@ -27,19 +41,18 @@ class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).values[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).values[slot] = value;
     }
 
     public Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        } else if (enclosing != null) {
-            return enclosing.get(name);
+        Object value = globals.get(name.symbol);
+        if (value != null || globals.containsKey(name.symbol)) {
+            return value;
         } else {
             throw new RuntimeError(
                 name, "Undefined variable '" +
@@ -49,10 +62,8 @@ class Environment {
     }
 
     public void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-        } else if (enclosing != null) {
-            enclosing.assign(name, value);
+        if (globals.containsKey(name.symbol)) {
+            globals.put(name.symbol, value);
         } else {
             throw new RuntimeError(
                 name, "Undefined variable '" +
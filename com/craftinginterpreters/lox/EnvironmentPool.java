@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// Recycles the Environments of blocks and calls that the Resolver found no
+// closure can capture (see hasClosures on Stmt.Block and Stmt.Function).
+// Frames are released in the reverse order they were acquired, so a small
+// free list per frame size is enough.
+class EnvironmentPool {
+    // Frames with more slots than this, and frames released while their free
+    // list is full, are simply left to the garbage collector.
+    private static final int MAX_SIZE = 16;
+    private static final int MAX_FREE = 64;
+
+    private final Environment[][] free =
+        new Environment[MAX_SIZE + 1][MAX_FREE];
+    private final int[] freeCount = new int[MAX_SIZE + 1];
+
+    Environment acquire(Environment enclosing, int size) {
+        if (size <= MAX_SIZE && freeCount[size] > 0) {
+            Environment environment = free[size][--freeCount[size]];
+            environment.enclosing = enclosing;
+            return environment;
+        }
+        return new Environment(enclosing, size);
+    }
+
+    void release(Environment environment) {
+        int size = environment.values.length;
+        if (size <= MAX_SIZE && freeCount[size] < MAX_FREE) {
+            // Don't keep the frame's values alive.
+            Arrays.fill(environment.values, null);
+            environment.enclosing = null;
+            free[size][freeCount[size]++] = environment;
+        }
+    }
+}
@@ -24,6 +24,8 @@ abstract class Expr {
     static class Assign extends Expr {
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot = -1;
 
         Assign(
             Token name,
@@ -42,6 +44,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        int specialization = 0;
+        boolean numeric = false;
 
         Binary(
             Expr left,
@@ -86,6 +90,7 @@ abstract class Expr {
     }
     static class Grouping extends Expr {
         final Expr expression;
+        boolean numeric = false;
 
         Grouping(
             Expr expression
@@ -116,6 +121,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        int specialization = 0;
 
         Logical(
             Expr left,
@@ -135,6 +141,8 @@ abstract class Expr {
     static class Unary extends Expr {
         final Token operator;
         final Expr right;
+        int specialization = 0;
+        boolean numeric = false;
 
         Unary(
             Token operator,
@@ -153,6 +161,8 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        boolean tail = false;
+        CallCache cache = new CallCache();
 
         Call(
             Expr callee,
@@ -172,6 +182,7 @@ abstract class Expr {
     static class Get extends Expr {
         final Expr object;
         final Token name;
+        PropertyCache cache = new PropertyCache();
 
         Get(
             Expr object,
@@ -190,6 +201,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        PropertyCache cache = new PropertyCache();
 
         Set(
             Expr object,
@@ -208,6 +220,8 @@ abstract class Expr {
     }
     static class This extends Expr {
         final Token keyword;
+        int depth = -1;
+        int slot = -1;
 
         This(
             Token keyword
@@ -223,6 +237,7 @@ abstract class Expr {
     static class Super extends Expr {
         final Token keyword;
         final Token method;
+        int depth = -1;
 
         Super(
             Token keyword,
@@ -239,6 +254,8 @@ abstract class Expr {
     }
     static class Variable extends Expr {
         final Token name;
+        int depth = -1;
+        int slot = -1;
 
         Variable(
             Token name
@@ -0,0 +1,205 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A front end for source that is checked again after every edit, like the
+// lines typed into the REPL or the buffer of an editor. It remembers the
+// tree of each top-level declaration together with the range of source it
+// was parsed from. After an edit, the declarations before and after the
+// changed text are reused as they are, already resolved and optimized, and
+// only the text in between is scanned, parsed, resolved and optimized again.
+//
+// Top-level declarations are parsed and resolved independently of each
+// other (globals are looked up by name at runtime), except that parsing one
+// looks at the token after it: an `else` may continue an `if` statement,
+// and an expression at the end of the input is printed. So the declaration
+// just before the change is parsed again too, and parsing the changed text
+// doesn't stop at its end but at the first declaration boundary that lines
+// up with an old one.
+class IncrementalParser {
+    private static class Declaration {
+        // The source range, from the declaration's first token (or the start
+        // of the source) to the next declaration's first token (or the end of
+        // the source).
+        final int start;
+        final int end;
+        final Stmt statement;
+        // False if scanning, parsing or resolving it reported an error. Such
+        // declarations are never reused, so their errors are reported again.
+        final boolean clean;
+        // What the Optimizer made of the statement, which is what runs: none,
+        // one or, for a block that declares nothing, several statements. Only
+        // set for clean declarations.
+        final List<Stmt> optimized;
+
+        Declaration(int start, int end, Stmt statement, boolean clean,
+                List<Stmt> optimized) {
+            this.start = start;
+            this.end = end;
+            this.statement = statement;
+            this.clean = clean;
+            this.optimized = optimized;
+        }
+    }
+
+    // Cleared to run declarations as they were parsed, like `--no-optimize`.
+    private final boolean optimize;
+
+    private String source = "";
+    private List<Declaration> declarations = new ArrayList<>();
+
+    IncrementalParser(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    // Returns the statements of `source`, resolved and optimized unless there
+    // were errors. Errors are reported as Lox.run() would.
+    List<Stmt> parse(String source) {
+        String old = this.source;
+        int oldLength = old.length();
+        int newLength = source.length();
+
+        int prefix = 0;
+        int common = Math.min(oldLength, newLength);
+        while (prefix < common && old.charAt(prefix) == source.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < common - prefix &&
+                old.charAt(oldLength - 1 - suffix) ==
+                source.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+
+        // Keep the declarations that end before the change, but for the last
+        // of them.
+        int first = 0;
+        while (first < declarations.size()) {
+            Declaration declaration = declarations.get(first);
+            if (!declaration.clean || declaration.end > prefix) break;
+            first++;
+        }
+        if (first > 0) first--;
+
+        // The declarations that start after it may be kept, unless lines were
+        // added or removed: their tokens would have the wrong line numbers.
+        int last = declarations.size();
+        if (countLines(old, prefix, oldLength - suffix) ==
+                countLines(source, prefix, newLength - suffix)) {
+            while (last > first) {
+                Declaration declaration = declarations.get(last - 1);
+                if (!declaration.clean ||
+                        declaration.start < oldLength - suffix) {
+                    break;
+                }
+                last--;
+            }
+        }
+
+        int shift = newLength - oldLength;
+        int from = first == 0 ? 0 : declarations.get(first - 1).end;
+        Parser parser = new Parser(new TokenBuffer(new Scanner(
+            source, from, newLength, 1 + countLines(source, 0, from))));
+
+        // Errors in the text between two declarations, like stray
+        // characters, belong to the first one, whose range includes it.
+        boolean hadError = Lox.hadError;
+        Lox.hadError = false;
+        List<Declaration> changed = new ArrayList<>();
+        boolean more = parser.hasDeclaration();
+        int start = from;
+        int next = declarations.size();
+        while (more) {
+            Stmt statement = parser.nextDeclaration();
+            more = parser.hasDeclaration();
+            int end = more ? parser.offset() : newLength;
+            changed.add(new Declaration(start, end, statement,
+                !Lox.hadError, null));
+            hadError |= Lox.hadError;
+            Lox.hadError = false;
+            start = end;
+
+            // Stop when the next declaration is one that can be kept.
+            next = last;
+            while (next < declarations.size() &&
+                    declarations.get(next).start + shift < end) {
+                next++;
+            }
+            if (more && next < declarations.size() &&
+                    declarations.get(next).start + shift == end) {
+                break;
+            }
+            next = declarations.size();
+        }
+        // There may be errors but no declaration to blame them on.
+        Lox.hadError |= hadError;
+
+        List<Declaration> parsed = new ArrayList<>(
+            declarations.subList(0, first));
+        parsed.addAll(resolve(changed));
+        for (Declaration declaration :
+                declarations.subList(next, declarations.size())) {
+            parsed.add(new Declaration(declaration.start + shift,
+                declaration.end + shift, declaration.statement, true,
+                declaration.optimized));
+        }
+
+        this.source = source;
+        this.declarations = parsed;
+
+        List<Stmt> statements = new ArrayList<>();
+        for (Declaration declaration : parsed) {
+            if (declaration.clean) {
+                statements.addAll(declaration.optimized);
+            } else {
+                // Never runs, as there were errors.
+                statements.add(declaration.statement);
+            }
+        }
+        return statements;
+    }
+
+    // Resolves the declarations one by one, to tell which have errors, and
+    // optimizes those without. After a syntax error, like Lox.run(), nothing
+    // is reported, but the trees are still resolved in case they are reused.
+    private List<Declaration> resolve(List<Declaration> declarations) {
+        boolean hadError = Lox.hadError;
+        Lox.silent = hadError;
+        Resolver resolver = new Resolver();
+        List<Declaration> resolved = new ArrayList<>();
+        try {
+            for (Declaration declaration : declarations) {
+                if (!declaration.clean) {
+                    resolved.add(declaration);
+                    continue;
+                }
+                Lox.hadError = false;
+                List<Stmt> statements =
+                    Collections.singletonList(declaration.statement);
+                resolver.resolve(statements);
+                boolean clean = !Lox.hadError;
+                if (clean && optimize) {
+                    statements = new Optimizer().optimize(statements);
+                }
+                resolved.add(new Declaration(declaration.start,
+                    declaration.end, declaration.statement, clean,
+                    clean ? statements : null));
+                hadError |= Lox.hadError;
+            }
+        } finally {
+            Lox.silent = false;
+            Lox.hadError = hadError;
+        }
+        return resolved;
+    }
+
+    private static int countLines(String source, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+}
@@ -7,22 +7,29 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     static final Environment globals = new Environment();
+
+    // The native functions, by the name they were defined under before any
+    // script ran, whichever globals refer to them since. Snapshots save
+    // natives by these names.
+    static final Map<Symbol, LoxCallable> natives = new HashMap<>();
     private Environment environment = globals;
+    final EnvironmentPool frames = new EnvironmentPool();
 
-    // Stores how many hops we must take (to different environments) when
-    // resolving a variable.
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // Compiles hot functions. Null with `--no-jit`.
+    Jit jit = new Jit();
 
-    private boolean breaking = false;
-    private boolean continuing = false;
-    private boolean returning = false;
+    // The function whose body is being interpreted, whose hotness the
+    // iterations of loops count towards.
+    Stmt.Function running = null;
 
-    private Object returnValue;
+    // Keeps the stack of Lox functions and lines being run for sampling.
+    // Set with `--profile`.
+    Profiler profiler = null;
 
     public Interpreter() {
-        globals.define("clock", new LoxCallable(){
+        defineNative("clock", new LoxCallable(){
         
             @Override
             public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
@@ -41,6 +48,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
+    private static void defineNative(String name, LoxCallable function) {
+        Symbol symbol = Symbol.intern(name);
+        natives.put(symbol, function);
+        globals.define(symbol, function);
+    }
+
     public void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
@@ -51,36 +64,30 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt statement) {
-        if (!breaking && !continuing && !returning) {
-            statement.accept(this);
-        } else {
-            // Left this in to be sure...
-            throw new RuntimeError(null,
-                "I was breaking/continuing/returning and tried to execute.");
-        }
-    }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private Completion execute(Stmt statement) {
+        if (profiler != null) profiler.line(statement.line);
+        return statement.accept(this);
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // Stops at the first statement that does not complete normally and
+    // hands its completion to the caller.
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         this.environment = environment;
         try {
             for (Stmt stmt : statements) {
-                if (breaking || continuing || returning) {
-                    break;
+                Completion completion = execute(stmt);
+                if (completion != Completion.NORMAL) {
+                    return completion;
                 }
-                execute(stmt);
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
-    private String stringify(Object value) {
+    static String stringify(Object value) {
         if (value == null) {
             return "nil";
         } else {
@@ -90,11 +97,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private boolean isTruthy(Object value) {
+    static boolean isTruthy(Object value) {
         if (value == null) {
             return false;
         }
@@ -104,17 +111,25 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return true;
     }
 
-    private boolean isEqual(Object left, Object right) {
+    static boolean isEqual(Object left, Object right) {
         if (left == null && right == null) {
             return true;
         }
         if (left == null) {
             return false;
         }
+        // Compare ropes by their characters.
+        if (left instanceof LoxRope) {
+            left = left.toString();
+        }
+        if (right instanceof LoxRope) {
+            right = right.toString();
+        }
         return left.equals(right);
     }
 
-    private void checkNumberOperands(Token operator, Object... operands) {
+    private static void checkNumberOperands(Token operator,
+            Object... operands) {
         for (Object operand : operands) {
             if (!(operand instanceof Double)) {
                 throw new RuntimeError(operator, "Operands must be numbers.");
@@ -122,32 +137,6 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    public Object consumeReturnValue(Token paren, Object thisValue) {
-        if (!returning && thisValue == null) {
-            // No return keyword was interpreted, so the function body
-            // terminated without a return value. Return `nil` in that case.
-            resetReturningState();
-            return null;
-        }
-
-        Object returnThisValue;
-        if (thisValue != null) {
-            returnThisValue = thisValue;
-        } else {
-            returnThisValue = returnValue;
-        }
-
-        // Reset state after consumption.
-        resetReturningState();
-
-        return returnThisValue;
-    }
-
-    private void resetReturningState() {
-        returning = false;
-        returnValue = null;
-    }
-
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -160,13 +149,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object value = evaluate(expr.right);
+        if (expr.numeric) {
+            return evaluateDouble(expr);
+        }
+        return unaryOperation(expr.operator, evaluate(expr.right));
+    }
 
-        switch (expr.operator.type) {
+    static Object unaryOperation(Token operator, Object value) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(value);
             case MINUS:
-                checkNumberOperands(expr.operator, value);
+                checkNumberOperands(operator, value);
                 return -((double) value);
             default:
                 // Should be unreachable.
@@ -176,46 +170,182 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.numeric) {
+            return evaluateDouble(expr);
+        }
+        if (isComparison(expr.operator.type) &&
+                (isNumeric(expr.left) || isNumeric(expr.right))) {
+            return compareDoubles(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binaryOperation(expr.operator, left, right);
+    }
+
+    // Whether the Resolver proved that `expr` evaluates to a number (or
+    // fails), so it can be evaluated with evaluateDouble().
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return ((Expr.Literal) expr).value instanceof Double;
+        } else if (expr instanceof Expr.Binary) {
+            return ((Expr.Binary) expr).numeric;
+        } else if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).numeric;
+        } else if (expr instanceof Expr.Grouping) {
+            return ((Expr.Grouping) expr).numeric;
+        }
+        return false;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+            type == TokenType.LESS || type == TokenType.LESS_EQUAL;
+    }
+
+    // Evaluates a numeric subtree as a primitive double, so intermediate
+    // results of arithmetic chains are never boxed. Operands that are not
+    // numeric themselves (variables, calls, ...) are evaluated normally and
+    // type checked only once both operands are known, as binaryOperation()
+    // does, so errors are reported at the same point.
+    double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return (double) ((Expr.Literal) expr).value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (isNumeric(unary.right)) {
+                return -evaluateDouble(unary.right);
+            }
+            return -toDouble(unary.operator, evaluate(unary.right));
+        }
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        double left = 0.0;
+        double right = 0.0;
+        Object leftValue = null;
+        Object rightValue = null;
+        boolean leftNumeric = isNumeric(binary.left);
+        boolean rightNumeric = isNumeric(binary.right);
+
+        if (leftNumeric) {
+            left = evaluateDouble(binary.left);
+        } else {
+            leftValue = evaluate(binary.left);
+        }
+        if (rightNumeric) {
+            right = evaluateDouble(binary.right);
+        } else {
+            rightValue = evaluate(binary.right);
+        }
+        if (!leftNumeric) {
+            left = toDouble(binary.operator, leftValue);
+        }
+        if (!rightNumeric) {
+            right = toDouble(binary.operator, rightValue);
+        }
+
+        switch (binary.operator.type) {
+            case PLUS:
+                return left + right;
+            case MINUS:
+                return left - right;
+            case STAR:
+                return left * right;
+            default:
+                if (right == 0.0) {
+                    throw new RuntimeError(binary.operator,
+                        "Cannot divide by zero.");
+                }
+                return left / right;
+        }
+    }
+
+    // A comparison with at least one numeric operand.
+    private boolean compareDoubles(Expr.Binary expr) {
+        double left = 0.0;
+        double right = 0.0;
+        Object leftValue = null;
+        Object rightValue = null;
+        boolean leftNumeric = isNumeric(expr.left);
+        boolean rightNumeric = isNumeric(expr.right);
+
+        if (leftNumeric) {
+            left = evaluateDouble(expr.left);
+        } else {
+            leftValue = evaluate(expr.left);
+        }
+        if (rightNumeric) {
+            right = evaluateDouble(expr.right);
+        } else {
+            rightValue = evaluate(expr.right);
+        }
+        if (!leftNumeric) {
+            left = toDouble(expr.operator, leftValue);
+        }
+        if (!rightNumeric) {
+            right = toDouble(expr.operator, rightValue);
+        }
 
         switch (expr.operator.type) {
+            case GREATER:
+                return left > right;
+            case GREATER_EQUAL:
+                return left >= right;
+            case LESS:
+                return left < right;
+            default:
+                return left <= right;
+        }
+    }
+
+    private static double toDouble(Token operator, Object value) {
+        if (!(value instanceof Double)) {
+            throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+        return (double) value;
+    }
+
+    static Object binaryOperation(Token operator, Object left,
+            Object right) {
+        switch (operator.type) {
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double) left + (double) right;
-                } else if (left instanceof String) {
-                    return (String) left + stringify(right);
-                } else if (right instanceof String) {
-                    return stringify(left) + right;
+                } else if (LoxRope.isString(left) || LoxRope.isString(right)) {
+                    return LoxRope.concat(left, right);
                 }
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                     "Operands must both be numbers or some of them have to be" +
                     " a String");
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double) right == 0.0) {
-                    throw new RuntimeError(expr.operator,
+                    throw new RuntimeError(operator,
                         "Cannot divide by zero.");
                 }
                 return (double) left / (double) right;
 
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
 
             case EQUAL_EQUAL:
@@ -245,25 +375,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    // `depth` is how many hops we must take (to different environments) to
+    // reach the variable, as found by the Resolver. It is -1 for globals.
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth >= 0) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
     }
 
+    // Declares a variable in the current scope: by slot for locals, by name
+    // for globals (which the Resolver gives slot -1).
+    private void define(Token name, int slot, Object value) {
+        if (slot < 0) {
+            globals.define(name.symbol, value);
+        } else {
+            environment.values[slot] = value;
+        }
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -272,8 +412,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
-        Object leftValue = evaluate(expr.left);
+        return logicalOperation(expr, evaluate(expr.left));
+    }
 
+    // Finishes a logical expression whose left operand has been evaluated.
+    Object logicalOperation(Expr.Logical expr, Object leftValue) {
         if (expr.operator.type == OR) {
             if (isTruthy(leftValue)) {
                 return leftValue;
@@ -296,146 +439,274 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance) object).set(expr.name, value);
+        expr.cache.set((LoxInstance) object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+        return findSuperMethod(expr).bind(superReceiver(expr));
+    }
 
-        // "this" is always one level nearer than "super"'s environment.
-        LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+    private LoxFunction findSuperMethod(Expr.Super expr) {
+        // "super" is the only variable in its scope.
+        LoxClass superclass = (LoxClass) environment.getAt(expr.depth, 0);
 
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxFunction method = superclass.findMethod(expr.method.symbol);
 
         if (method == null) {
             throw new RuntimeError(expr.method, "Undefined method '"
                 + expr.method.lexeme + "'.");
         }
+        return method;
+    }
 
-        return method.bind(object);
+    private LoxInstance superReceiver(Expr.Super expr) {
+        // The scope of the method is always one level nearer than "super"'s
+        // environment, and holds "this" in slot 0.
+        return (LoxInstance) environment.getAt(expr.depth - 1, 0);
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(expr, false);
+    }
+
+    // With `tail` set, calls to Lox functions are not made but returned as a
+    // Completion.TailCall for the trampoline in LoxFunction.invoke.
+    private Object call(Expr.Call expr, boolean tail) {
+        // Method calls invoke the method with its receiver directly instead
+        // of materializing a bound method first.
+        Object callee;
+        LoxInstance receiver = null;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name,
+                    "Only instances have properties.");
+            }
+            receiver = (LoxInstance) object;
+            callee = get.cache.getUnbound(receiver, get.name);
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            callee = findSuperMethod(superExpr);
+            receiver = superReceiver(superExpr);
+        } else {
+            callee = evaluate(expr.callee);
+        }
 
-        List<Object> args = new ArrayList<>();
+        List<Object> args = new ArrayList<>(expr.arguments.size());
         for (Expr arg : expr.arguments) {
             args.add(evaluate(arg));
         }
 
-        if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Expression is not callable.");
-        }
-
-        LoxCallable function = (LoxCallable) callee;
-
-        if (args.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
-                " arguments, but got " + args.size() + ".");
-        }
-
-        return function.call(this, args, expr.paren);
+        return expr.cache.call(this, callee, receiver, args, expr.paren,
+            tail);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return expr.cache.get((LoxInstance) object, expr.name);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
-            if (breaking) {
-                break;
-            } else if (continuing) {
-                continuing = false;
-                continue;
-            } else if (returning) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        // The condition is evaluated again after the body, whose lines were
+        // marked since.
+        while (true) {
+            if (profiler != null) profiler.line(stmt.line);
+            if (!isTruthy(evaluate(stmt.condition))) break;
+
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) {
                 break;
+            } else if (completion != Completion.NORMAL &&
+                    completion != Completion.CONTINUE) {
+                // Returning from the enclosing function.
+                return completion;
+            }
+            if (running != null) running.hotness++;
+        }
+        return Completion.NORMAL;
+    }
+
+    // Runs `for (var i = start; i < limit; i = i + step) body` keeping `i` in
+    // a Java double. The Optimizer only creates these loops when nothing but
+    // the increment assigns `i` and no closure refers to it, so the copy in
+    // slot 0 is only there for the body and the limit and step expressions to
+    // read. Those are evaluated every iteration, in the same order as in the
+    // while loop the for statement desugars to.
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        Environment frame = stmt.hasClosures ?
+            new Environment(environment, 1) : frames.acquire(environment, 1);
+        Environment previous = environment;
+        environment = frame;
+        try {
+            Object start = evaluate(stmt.initializer);
+            frame.values[0] = start;
+            if (!(start instanceof Double)) {
+                evaluate(stmt.limit);
+                throw new RuntimeError(stmt.comparison,
+                    "Operands must be numbers.");
             }
+
+            double i = (double) start;
+            while (true) {
+                if (profiler != null) profiler.line(stmt.name.line);
+                double limit = evaluateOperand(stmt.limit, stmt.comparison);
+                boolean inRange;
+                switch (stmt.comparison.type) {
+                    case LESS: inRange = i < limit; break;
+                    case LESS_EQUAL: inRange = i <= limit; break;
+                    case GREATER: inRange = i > limit; break;
+                    default: inRange = i >= limit; break;
+                }
+                if (!inRange) break;
+
+                Completion completion = execute(stmt.body);
+                if (completion == Completion.BREAK) {
+                    break;
+                } else if (completion != Completion.NORMAL &&
+                        completion != Completion.CONTINUE) {
+                    return completion;
+                }
+                if (running != null) running.hotness++;
+
+                double step;
+                if (isNumeric(stmt.step)) {
+                    step = evaluateDouble(stmt.step);
+                } else {
+                    Object value = evaluate(stmt.step);
+                    if (!(value instanceof Double)) {
+                        // Fails, or makes `i` a string, which the next
+                        // condition check rejects.
+                        frame.values[0] =
+                            binaryOperation(stmt.increment, i, value);
+                        evaluate(stmt.limit);
+                        throw new RuntimeError(stmt.comparison,
+                            "Operands must be numbers.");
+                    }
+                    step = (double) value;
+                }
+                i = stmt.increment.type == PLUS ? i + step : i - step;
+                frame.values[0] = i;
+            }
+            return Completion.NORMAL;
+        } finally {
+            environment = previous;
+            if (!stmt.hasClosures) {
+                frames.release(frame);
+            }
+        }
+    }
+
+    // Evaluates an operand of `operator` that has to be a number.
+    private double evaluateOperand(Expr operand, Token operator) {
+        if (isNumeric(operand)) {
+            return evaluateDouble(operand);
         }
-        breaking = false;
-        continuing = false;
-        return null;
+        return toDouble(operator, evaluate(operand));
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        breaking = true;
-        return null;
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitContinueStmt(Stmt.Continue stmt) {
-        continuing = true;
-        return null;
+    public Completion visitContinueStmt(Stmt.Continue stmt) {
+        return Completion.CONTINUE;
     }
 
+    // Imports only appear at the top level, so the module's declarations end
+    // up in the globals like the importer's own.
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitImportStmt(Stmt.Import stmt) {
+        Module module = stmt.module;
+        if (!module.executed) {
+            // Marked first, so an import cycle ends here.
+            module.executed = true;
+            executeBlock(module.statements, globals);
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value instanceof Expr.Call && ((Expr.Call) stmt.value).tail) {
+            Object result = call((Expr.Call) stmt.value, true);
+            if (result instanceof Completion.TailCall) {
+                return (Completion.TailCall) result;
+            }
+            return Completion.returning(result);
+        }
+
         Object value = null;
         if (stmt.value != null) {
             value = evaluate(stmt.value);
         }
-        returning = true;
-        returnValue = value;
-
-        return null;
+        return Completion.returning(value);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        environment.define(stmt.name.lexeme,
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        define(stmt.name, stmt.slot,
             stmt.initializer != null ? evaluate(stmt.initializer) : null);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block blockStmt) {
-        executeBlock(blockStmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block blockStmt) {
+        if (blockStmt.hasClosures) {
+            return executeBlock(blockStmt.statements,
+                new Environment(environment, blockStmt.localCount));
+        }
+
+        Environment frame = frames.acquire(environment, blockStmt.localCount);
+        try {
+            return executeBlock(blockStmt.statements, frame);
+        } finally {
+            frames.release(frame);
+        }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -445,17 +716,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
+        define(stmt.name, stmt.slot, null);
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.values[0] = superclass;
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment);
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, environment,
+                method.name.lexeme.equals("init"), true);
+            methods.put(method.name.symbol, function);
         }
         LoxClass klass = new LoxClass(stmt.name.lexeme,
             (LoxClass) superclass, methods);
@@ -464,15 +736,20 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
+        if (stmt.slot < 0) {
+            globals.assign(stmt.name, klass);
+        } else {
+            environment.values[stmt.slot] = klass;
+        }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function funcStmt) {
-        LoxFunction function = new LoxFunction(funcStmt, environment);
-        environment.define(funcStmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function funcStmt) {
+        LoxFunction function = new LoxFunction(funcStmt, environment, false,
+            false);
+        define(funcStmt.name, funcStmt.slot, function);
+        return Completion.NORMAL;
     }
 }
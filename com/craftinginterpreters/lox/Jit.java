@@ -0,0 +1,125 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+// The tier above the tree-walking interpreter. LoxFunction.invoke() counts
+// the calls of each function here, and the Interpreter adds the iterations
+// of its loops, and once a function is hot its body is compiled to a JVM
+// class by JitCompiler, which HotSpot then optimizes like any other code.
+//
+// Compiled code assumes its parameters are numbers if all calls so far
+// passed numbers. When a call passes something else, the code is dropped
+// and the call interpreted; the function is compiled again, without that
+// assumption, once it is hot again.
+final class Jit {
+    // Calls plus loop iterations before a function is compiled.
+    static final int HOT = 1000;
+
+    // Where the count of functions that can't be compiled starts. It never
+    // gets up to HOT in practice.
+    private static final int NEVER = Integer.MIN_VALUE;
+
+    // Lookup.defineHiddenClass(), on JDKs that have it. Hidden classes are
+    // unloaded once their code is dropped; on older JDKs the classes are
+    // defined as normal classes of this package instead.
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName(
+                "java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            method = null;
+        }
+        DEFINE_HIDDEN_CLASS = method;
+        NO_OPTIONS = options;
+    }
+
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // Makes the names of the generated classes unique.
+    private int count = 0;
+
+    // Set with `--profile`, for compiled code to mark the lines it runs.
+    boolean lines = false;
+
+    // Counts a call of `function` with `arguments`, and returns its compiled
+    // code once it is hot.
+    CompiledFunction profile(LoxFunction function, List<Object> arguments) {
+        Stmt.Function code = function.declaration;
+        for (int i = 0; i < arguments.size() && i < 32; i++) {
+            if (!(arguments.get(i) instanceof Double)) {
+                code.nonNumeric |= 1 << i;
+            }
+        }
+        if (++code.hotness < HOT) {
+            return null;
+        }
+
+        // Methods need a receiver, which compiled code has no place for.
+        if (!function.isMethod) {
+            code.compiled = compile(code);
+        }
+        if (code.compiled == null) {
+            code.hotness = NEVER;
+        }
+        return code.compiled;
+    }
+
+    // Drops the compiled code of `code`, which returned DEOPT for
+    // `arguments`.
+    void deoptimize(Stmt.Function code, List<Object> arguments) {
+        for (int i = 0; i < arguments.size() && i < 32; i++) {
+            if (!(arguments.get(i) instanceof Double)) {
+                code.nonNumeric |= 1 << i;
+            }
+        }
+        code.compiled = null;
+        code.hotness = 0;
+    }
+
+    private CompiledFunction compile(Stmt.Function code) {
+        String name = "com/craftinginterpreters/lox/Jit$" +
+            code.name.lexeme + "$" + ++count;
+        JitCompiler compiler = new JitCompiler(code, name, code.nonNumeric,
+            lines);
+        byte[] bytes = compiler.compile();
+        if (bytes == null) {
+            return null;
+        }
+
+        try {
+            MethodHandles.Lookup defined;
+            if (DEFINE_HIDDEN_CLASS != null) {
+                defined = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(
+                    lookup, bytes, true, NO_OPTIONS);
+            } else {
+                defined = lookup.in(lookup.defineClass(bytes));
+            }
+            return (CompiledFunction) defined.findConstructor(
+                defined.lookupClass(), MethodType.methodType(void.class,
+                    Object[].class, Stmt.Function.class))
+                .invoke(compiler.constants(), code);
+        } catch (InvocationTargetException e) {
+            // The JVM rejected the class, which leaves the function to the
+            // interpreter.
+            if (e.getCause() instanceof LinkageError) return null;
+            throw new IllegalStateException(e.getCause());
+        } catch (LinkageError | ReflectiveOperationException e) {
+            return null;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,1122 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.ClassFile.*;
+
+import com.craftinginterpreters.lox.ClassFile.Code;
+import com.craftinginterpreters.lox.ClassFile.Label;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the body of a Lox function to a JVM class extending
+// CompiledFunction, for Jit. Its run() method takes the parameters and
+// keeps every local variable in a JVM local instead of an Environment, and
+// call() unpacks the arguments for it.
+//
+// Variables and expressions that only ever hold numbers are kept as
+// primitive doubles, and those that only hold booleans as ints, so HotSpot
+// sees arithmetic it can optimize like Java's. Locals get a kind from what
+// is stored in them, so the body is generated until no local changes kind,
+// and the last version is kept. Parameters are assumed to be numbers when
+// every call so far passed numbers; call() checks that before running
+// anything and returns CompiledFunction.DEOPT if it no longer holds.
+//
+// Only functions whose variables are their own or global can be compiled:
+// nothing with nested functions or classes, so no closure ever captures a
+// local, and no methods.
+class JitCompiler implements Expr.Visitor<JitCompiler.Kind>,
+        Stmt.Visitor<Void> {
+    enum Kind { DOUBLE, BOOLEAN, OBJECT }
+
+    // Thrown on whatever can't be compiled.
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Local {
+        // Null until something is stored in it.
+        Kind kind;
+        // Set on the variable of a Stmt.For, which stays a double.
+        boolean fixed = false;
+        // Of the pass being generated.
+        int index;
+
+        Local(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private static final class Loop {
+        final Label next;
+        final Label end;
+
+        Loop(Label next, Label end) {
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    private static final String SUPER =
+        "com/craftinginterpreters/lox/CompiledFunction";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String INTERPRETER =
+        "com/craftinginterpreters/lox/Interpreter";
+    private static final String TOKEN =
+        "Lcom/craftinginterpreters/lox/Token;";
+    private static final String INSTANCE =
+        "Lcom/craftinginterpreters/lox/LoxInstance;";
+    private static final String CONSTRUCTOR = "([Ljava/lang/Object;" +
+        "Lcom/craftinginterpreters/lox/Stmt$Function;)V";
+
+    private final Stmt.Function function;
+    private final String className;
+
+    // Whether the code marks the lines it runs for the Profiler, like the
+    // Interpreter does.
+    private final boolean lines;
+
+    // The variables of each scope, by the function, block or for loop that
+    // declares it. Kept from one pass to the next.
+    private final Map<Object, Local[]> scopeLocals = new IdentityHashMap<>();
+
+    // The state of a pass.
+    private ClassFile file;
+    private Code code;
+    private String runDescriptor;
+    private Label start;
+    private final List<Local[]> scopes = new ArrayList<>();
+    private final List<Loop> loops = new ArrayList<>();
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes =
+        new IdentityHashMap<>();
+    private boolean changed;
+
+    // The line the Profiler is known to be at where the code being generated
+    // runs, so that a statement on the line marked before it isn't marked
+    // again. NOT_MARKED where it could be any line (like after a call, whose
+    // direct calls of this function mark lines without a frame of their
+    // own), UNREACHABLE after a return or jump.
+    private static final int NOT_MARKED = 0;
+    private static final int UNREACHABLE = -1;
+    private int marked;
+
+    // The local the Profiler is kept in, so that marking a line doesn't
+    // load it from the Interpreter again.
+    private int profiler;
+
+    // Bit i of `nonNumeric` is set if parameter i was passed something other
+    // than a number.
+    JitCompiler(Stmt.Function function, String className, int nonNumeric,
+            boolean lines) {
+        this.function = function;
+        this.className = className;
+        this.lines = lines;
+
+        Local[] frame = locals(function, function.localCount);
+        for (int i = 0; i < function.params.size(); i++) {
+            boolean numeric = i < 32 && (nonNumeric & (1 << i)) == 0;
+            frame[i].kind = numeric ? Kind.DOUBLE : Kind.OBJECT;
+        }
+    }
+
+    // Returns the class file, or null if the function can't be compiled.
+    byte[] compile() {
+        try {
+            do {
+                changed = false;
+                generate();
+            } while (changed);
+            return file.toBytes();
+        } catch (Unsupported | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    // What the compiled code's constants array must hold.
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    private void generate() {
+        file = new ClassFile(className, SUPER);
+        scopes.clear();
+        loops.clear();
+        constants.clear();
+        constantIndexes.clear();
+        marked = NOT_MARKED;
+
+        Code init = file.method(0, "<init>", CONSTRUCTOR);
+        init.local(ALOAD, 0);
+        init.local(ALOAD, 1);
+        init.local(ALOAD, 2);
+        init.invoke(INVOKESPECIAL, SUPER, "<init>", CONSTRUCTOR);
+        init.op(RETURN, 0);
+
+        Local[] frame = scopeLocals.get(function);
+        int arity = function.params.size();
+        StringBuilder descriptor = new StringBuilder(
+            "(L" + INTERPRETER + ";");
+        for (int i = 0; i < arity; i++) {
+            descriptor.append(descriptor(frame[i].kind));
+        }
+        runDescriptor = descriptor.append(")Ljava/lang/Object;").toString();
+
+        code = file.method(ACC_FINAL, "run", runDescriptor);
+        int index = 2;
+        for (int i = 0; i < arity; i++) {
+            frame[i].index = index;
+            index += size(frame[i].kind);
+        }
+        for (int i = arity; i < frame.length; i++) {
+            frame[i].index = code.newLocal(2);
+        }
+        scopes.add(frame);
+
+        if (lines) {
+            profiler = code.newLocal(1);
+            code.local(ALOAD, 1);
+            code.field(GETFIELD, INTERPRETER, "profiler",
+                "Lcom/craftinginterpreters/lox/Profiler;");
+            code.local(ASTORE, profiler);
+        }
+
+        // Self tail calls jump back here.
+        start = new Label();
+        code.bind(start);
+        statements(function.body);
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+
+        generateCall(frame);
+    }
+
+    // call(Interpreter, List) checks the arguments assumed to be numbers,
+    // then passes them all to run().
+    private void generateCall(Local[] frame) {
+        Code call = file.method(0, "call", "(L" + INTERPRETER +
+            ";Ljava/util/List;)Ljava/lang/Object;");
+        Label deoptimize = new Label();
+        int arity = function.params.size();
+        for (int i = 0; i < arity; i++) {
+            if (frame[i].kind != Kind.DOUBLE) continue;
+            argument(call, i);
+            call.type(INSTANCEOF, DOUBLE);
+            call.jump(IFEQ, deoptimize);
+        }
+
+        call.local(ALOAD, 0);
+        call.local(ALOAD, 1);
+        for (int i = 0; i < arity; i++) {
+            argument(call, i);
+            if (frame[i].kind == Kind.DOUBLE) {
+                unbox(call);
+            }
+        }
+        call.invoke(INVOKEVIRTUAL, className, "run", runDescriptor);
+        call.op(ARETURN, -1);
+
+        call.bind(deoptimize);
+        call.field(GETSTATIC, SUPER, "DEOPT", "Ljava/lang/Object;");
+        call.op(ARETURN, -1);
+    }
+
+    private static void argument(Code call, int i) {
+        call.local(ALOAD, 2);
+        call.iconst(i);
+        call.invoke(INVOKEINTERFACE, "java/util/List", "get",
+            "(I)Ljava/lang/Object;");
+    }
+
+    private static String descriptor(Kind kind) {
+        switch (kind) {
+            case DOUBLE: return "D";
+            case BOOLEAN: return "Z";
+            default: return "Ljava/lang/Object;";
+        }
+    }
+
+    private static int size(Kind kind) {
+        return kind == Kind.DOUBLE ? 2 : 1;
+    }
+
+    private Local[] locals(Object scope, int count) {
+        Local[] locals = scopeLocals.get(scope);
+        if (locals == null) {
+            locals = new Local[count];
+            for (int i = 0; i < count; i++) {
+                locals[i] = new Local(null);
+            }
+            scopeLocals.put(scope, locals);
+        }
+        return locals;
+    }
+
+    // Enters a block's or loop's scope, giving its variables JVM locals.
+    private Local[] beginScope(Object scope, int count) {
+        Local[] locals = locals(scope, count);
+        for (Local local : locals) {
+            local.index = code.newLocal(2);
+        }
+        scopes.add(locals);
+        return locals;
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // The variable the Resolver found `depth` scopes out, or null for a
+    // global.
+    private Local resolve(int depth, int slot) {
+        if (depth < 0) return null;
+        int scope = scopes.size() - 1 - depth;
+        // Variables of enclosing functions are not supported.
+        if (scope < 0 || slot < 0 || slot >= scopes.get(scope).length) {
+            throw new Unsupported();
+        }
+        return scopes.get(scope)[slot];
+    }
+
+    // A temporary JVM local.
+    private Local temporary(Kind kind) {
+        Local local = new Local(kind);
+        local.index = code.newLocal(size(kind));
+        return local;
+    }
+
+    // Notes that a value of `kind` is stored in `local`, which may change
+    // its kind and require another pass.
+    private void assigned(Local local, Kind kind) {
+        Kind joined = local.kind == null || local.kind == kind ?
+            kind : Kind.OBJECT;
+        if (joined != local.kind) {
+            if (local.fixed) throw new Unsupported();
+            local.kind = joined;
+            changed = true;
+        }
+    }
+
+    private Kind kind(Local local) {
+        if (local.kind == null) assigned(local, Kind.OBJECT);
+        return local.kind;
+    }
+
+    private void load(Local local) {
+        switch (kind(local)) {
+            case DOUBLE: code.local(DLOAD, local.index); break;
+            case BOOLEAN: code.local(ILOAD, local.index); break;
+            default: code.local(ALOAD, local.index); break;
+        }
+    }
+
+    private void store(Local local) {
+        switch (kind(local)) {
+            case DOUBLE: code.local(DSTORE, local.index); break;
+            case BOOLEAN: code.local(ISTORE, local.index); break;
+            default: code.local(ASTORE, local.index); break;
+        }
+    }
+
+    // Converts the value on the stack to the kind of `local`, which was
+    // joined with `kind`, so it can only be more general.
+    private void convert(Kind kind, Local local) {
+        if (kind(local) == Kind.OBJECT) box(kind);
+    }
+
+    private void box(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            code.invoke(INVOKESTATIC, DOUBLE, "valueOf",
+                "(D)Ljava/lang/Double;");
+        } else if (kind == Kind.BOOLEAN) {
+            code.invoke(INVOKESTATIC, BOOLEAN, "valueOf",
+                "(Z)Ljava/lang/Boolean;");
+        }
+    }
+
+    private static void unbox(Code code) {
+        code.type(CHECKCAST, DOUBLE);
+        code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+    }
+
+    private void pop(Kind kind) {
+        code.op(kind == Kind.DOUBLE ? POP2 : POP, -size(kind));
+    }
+
+    private void duplicate(Kind kind) {
+        code.op(kind == Kind.DOUBLE ? DUP2 : DUP, size(kind));
+    }
+
+    // Pushes a constant the code refers to, cast to `type` unless it's null.
+    private void constant(Object value, String type) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        code.local(ALOAD, 0);
+        code.field(GETFIELD, SUPER, "constants", "[Ljava/lang/Object;");
+        code.iconst(index);
+        code.op(AALOAD, -1);
+        if (type != null) code.type(CHECKCAST, type);
+    }
+
+    private void token(Token token) {
+        constant(token, "com/craftinginterpreters/lox/Token");
+    }
+
+    private void helper(String name, String descriptor) {
+        code.invoke(INVOKESTATIC, SUPER, name, descriptor);
+    }
+
+    private Kind compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Compiles `expr` as an operand of `operator` that must be a number.
+    private void number(Expr expr, Token operator) {
+        toNumber(compile(expr), operator);
+    }
+
+    private void toNumber(Kind kind, Token operator) {
+        if (kind == Kind.DOUBLE) return;
+        box(kind);
+        token(operator);
+        helper("toDouble", "(Ljava/lang/Object;" + TOKEN + ")D");
+    }
+
+    // Compiles `expr` for whether it is truthy, as an int.
+    private void truth(Expr expr) {
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical) expr;
+            Label end = new Label();
+            truth(logical.left);
+            code.op(DUP, 1);
+            code.jump(logical.operator.type == TokenType.OR ? IFNE : IFEQ,
+                end);
+            code.op(POP, -1);
+            truth(logical.right);
+            code.bind(end);
+        } else if (expr instanceof Expr.Grouping) {
+            truth(((Expr.Grouping) expr).expression);
+        } else {
+            toTruth(compile(expr));
+        }
+    }
+
+    private void toTruth(Kind kind) {
+        if (kind == Kind.DOUBLE) {
+            code.op(POP2, -2);
+            code.op(ICONST_1, 1);
+        } else if (kind == Kind.OBJECT) {
+            code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy",
+                "(Ljava/lang/Object;)Z");
+        }
+    }
+
+    private void not() {
+        code.op(ICONST_1, 1);
+        code.op(IXOR, -1);
+    }
+
+    @Override
+    public Kind visitAssignExpr(Expr.Assign expr) {
+        Local local = resolve(expr.depth, expr.slot);
+        Kind kind = compile(expr.value);
+        if (local == null) {
+            box(kind);
+            token(expr.name);
+            helper("assignGlobal",
+                "(Ljava/lang/Object;" + TOKEN + ")Ljava/lang/Object;");
+            return Kind.OBJECT;
+        }
+        assigned(local, kind);
+        convert(kind, local);
+        duplicate(kind(local));
+        store(local);
+        return kind(local);
+    }
+
+    @Override
+    public Kind visitBinaryExpr(Expr.Binary expr) {
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case PLUS: {
+                Kind left = compile(expr.left);
+                if (left == Kind.DOUBLE) {
+                    Kind right = compile(expr.right);
+                    if (right == Kind.DOUBLE) {
+                        code.op(DADD, -2);
+                        return Kind.DOUBLE;
+                    }
+                    box(right);
+                    token(operator);
+                    helper("add", "(DLjava/lang/Object;" + TOKEN +
+                        ")Ljava/lang/Object;");
+                    return Kind.OBJECT;
+                }
+                box(left);
+                box(compile(expr.right));
+                token(operator);
+                helper("add", "(Ljava/lang/Object;Ljava/lang/Object;" +
+                    TOKEN + ")Ljava/lang/Object;");
+                return Kind.OBJECT;
+            }
+            case MINUS:
+                numbers(expr);
+                code.op(DSUB, -2);
+                return Kind.DOUBLE;
+            case STAR:
+                numbers(expr);
+                code.op(DMUL, -2);
+                return Kind.DOUBLE;
+            case SLASH:
+                numbers(expr);
+                token(operator);
+                helper("divide", "(DD" + TOKEN + ")D");
+                return Kind.DOUBLE;
+            case GREATER:
+                numbers(expr);
+                return compare(DCMPL, IFGT);
+            case GREATER_EQUAL:
+                numbers(expr);
+                return compare(DCMPL, IFGE);
+            case LESS:
+                numbers(expr);
+                return compare(DCMPG, IFLT);
+            case LESS_EQUAL:
+                numbers(expr);
+                return compare(DCMPG, IFLE);
+            case EQUAL_EQUAL:
+                equality(expr);
+                return Kind.BOOLEAN;
+            case BANG_EQUAL:
+                equality(expr);
+                not();
+                return Kind.BOOLEAN;
+            default:
+                throw new Unsupported();
+        }
+    }
+
+    // Compiles both operands of an arithmetic or comparison operator as
+    // doubles. Like the Interpreter, both are evaluated before either is
+    // checked, the left one first.
+    private void numbers(Expr.Binary expr) {
+        Kind left = compile(expr.left);
+        if (left == Kind.DOUBLE) {
+            number(expr.right, expr.operator);
+            return;
+        }
+
+        box(left);
+        Local leftValue = temporary(Kind.OBJECT);
+        store(leftValue);
+        Kind right = compile(expr.right);
+        Local rightValue = temporary(right == Kind.DOUBLE ?
+            Kind.DOUBLE : Kind.OBJECT);
+        if (right != Kind.DOUBLE) box(right);
+        store(rightValue);
+        load(leftValue);
+        toNumber(Kind.OBJECT, expr.operator);
+        load(rightValue);
+        toNumber(rightValue.kind, expr.operator);
+    }
+
+    // Turns the comparison of the two doubles on the stack into a boolean.
+    // DCMPL and DCMPG make NaN compare so that the comparison is false.
+    private Kind compare(int compare, int jump) {
+        Label isTrue = new Label();
+        Label end = new Label();
+        code.op(compare, -3);
+        code.jump(jump, isTrue);
+        code.op(ICONST_0, 1);
+        code.jump(GOTO, end);
+        code.bind(isTrue);
+        code.op(ICONST_1, 1);
+        code.bind(end);
+        return Kind.BOOLEAN;
+    }
+
+    private void equality(Expr.Binary expr) {
+        Kind left = compile(expr.left);
+        if (left == Kind.DOUBLE) {
+            Kind right = compile(expr.right);
+            if (right == Kind.DOUBLE) {
+                helper("equal", "(DD)Z");
+            } else {
+                box(right);
+                helper("equal", "(DLjava/lang/Object;)Z");
+            }
+            return;
+        }
+        box(left);
+        box(compile(expr.right));
+        code.invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+            "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+    }
+
+    @Override
+    public Kind visitTernaryExpr(Expr.Ternary expr) {
+        Label otherwise = new Label();
+        Label end = new Label();
+        truth(expr.left);
+        code.jump(IFEQ, otherwise);
+        box(compile(expr.middle));
+        code.jump(GOTO, end);
+        code.bind(otherwise);
+        box(compile(expr.right));
+        code.bind(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Kind visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            code.dconst((double) value);
+            return Kind.DOUBLE;
+        } else if (value instanceof Boolean) {
+            code.op((boolean) value ? ICONST_1 : ICONST_0, 1);
+            return Kind.BOOLEAN;
+        } else if (value == null) {
+            code.op(ACONST_NULL, 1);
+        } else {
+            constant(value, null);
+        }
+        return Kind.OBJECT;
+    }
+
+    // The value of `a and b` or `a or b` is one of the operands, so it is
+    // boxed. In conditions, truth() avoids that.
+    @Override
+    public Kind visitLogicalExpr(Expr.Logical expr) {
+        Label end = new Label();
+        box(compile(expr.left));
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy",
+            "(Ljava/lang/Object;)Z");
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        box(compile(expr.right));
+        code.bind(end);
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            truth(expr.right);
+            not();
+            return Kind.BOOLEAN;
+        }
+        number(expr.right, expr.operator);
+        code.op(DNEG, 0);
+        return Kind.DOUBLE;
+    }
+
+    @Override
+    public Kind visitCallExpr(Expr.Call expr) {
+        Kind kind = call(expr, false);
+        marked = NOT_MARKED;
+        return kind;
+    }
+
+    // With `tail` set, leaves a Completion.TailCall for calls of Lox
+    // functions, like Interpreter.call() does, except for calls of this
+    // function, which jump back to the start.
+    private Kind call(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Get) {
+            // Evaluated like Interpreter.call() does, without binding the
+            // method.
+            Expr.Get get = (Expr.Get) expr.callee;
+            box(compile(get.object));
+            token(get.name);
+            helper("receiver", "(Ljava/lang/Object;" + TOKEN + ")" +
+                INSTANCE);
+            Local receiver = temporary(Kind.OBJECT);
+            store(receiver);
+
+            code.local(ALOAD, 1);
+            load(receiver);
+            constant(get, "com/craftinginterpreters/lox/Expr$Get");
+            helper("method", "(" + INSTANCE +
+                "Lcom/craftinginterpreters/lox/Expr$Get;)Ljava/lang/Object;");
+            load(receiver);
+            arguments(expr.arguments);
+            finishCall(expr, tail);
+            return Kind.OBJECT;
+        }
+
+        if (expr.callee instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr.callee;
+            if (variable.depth < 0 &&
+                    variable.name.symbol == function.name.symbol &&
+                    expr.arguments.size() == function.params.size()) {
+                return selfCall(expr, tail);
+            }
+        } else if (expr.callee instanceof Expr.Super) {
+            throw new Unsupported();
+        }
+
+        code.local(ALOAD, 1);
+        box(compile(expr.callee));
+        code.op(ACONST_NULL, 1);
+        arguments(expr.arguments);
+        finishCall(expr, tail);
+        return Kind.OBJECT;
+    }
+
+    // Pushes the arguments in an array.
+    private void arguments(List<Expr> arguments) {
+        code.iconst(arguments.size());
+        code.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < arguments.size(); i++) {
+            code.op(DUP, 1);
+            code.iconst(i);
+            box(compile(arguments.get(i)));
+            code.op(AASTORE, -3);
+        }
+    }
+
+    // Calls CompiledFunction.call() with the interpreter, callee, receiver
+    // and arguments on the stack.
+    private void finishCall(Expr.Call expr, boolean tail) {
+        constant(expr, "com/craftinginterpreters/lox/Expr$Call");
+        code.op(tail ? ICONST_1 : ICONST_0, 1);
+        helper("call", "(L" + INTERPRETER + ";Ljava/lang/Object;" +
+            INSTANCE + "[Ljava/lang/Object;" +
+            "Lcom/craftinginterpreters/lox/Expr$Call;Z)Ljava/lang/Object;");
+    }
+
+    // A call of the global this function is defined as, which still refers
+    // to it if the global hasn't been changed. Then run() is called
+    // directly, with the arguments kept unboxed, or, for a tail call, the
+    // arguments become the parameters and the function starts over.
+    private Kind selfCall(Expr.Call expr, boolean tail) {
+        compile(expr.callee);
+        Local callee = temporary(Kind.OBJECT);
+        store(callee);
+
+        int arity = expr.arguments.size();
+        Local[] arguments = new Local[arity];
+        for (int i = 0; i < arity; i++) {
+            Kind kind = compile(expr.arguments.get(i));
+            arguments[i] = temporary(kind);
+            store(arguments[i]);
+        }
+
+        Local[] frame = scopes.get(0);
+        boolean fits = true;
+        for (int i = 0; i < arity; i++) {
+            if (kind(frame[i]) == Kind.DOUBLE &&
+                    arguments[i].kind == Kind.BOOLEAN) {
+                fits = false;
+            }
+        }
+
+        Label generic = new Label();
+        Label end = new Label();
+        if (fits) {
+            code.local(ALOAD, 0);
+            load(callee);
+            code.invoke(INVOKEVIRTUAL, SUPER, "isSelf",
+                "(Ljava/lang/Object;)Z");
+            code.jump(IFEQ, generic);
+            for (int i = 0; i < arity; i++) {
+                if (frame[i].kind == Kind.DOUBLE &&
+                        arguments[i].kind == Kind.OBJECT) {
+                    load(arguments[i]);
+                    code.type(INSTANCEOF, DOUBLE);
+                    code.jump(IFEQ, generic);
+                }
+            }
+
+            if (tail) {
+                for (int i = 0; i < arity; i++) {
+                    parameter(arguments[i], frame[i]);
+                    store(frame[i]);
+                }
+                code.jump(GOTO, start);
+            } else {
+                code.local(ALOAD, 0);
+                code.local(ALOAD, 1);
+                for (int i = 0; i < arity; i++) {
+                    parameter(arguments[i], frame[i]);
+                }
+                code.invoke(INVOKEVIRTUAL, className, "run", runDescriptor);
+                code.local(ALOAD, 1);
+                token(expr.paren);
+                helper("complete", "(Ljava/lang/Object;L" + INTERPRETER +
+                    ";" + TOKEN + ")Ljava/lang/Object;");
+                code.jump(GOTO, end);
+            }
+        }
+
+        code.bind(generic);
+        code.local(ALOAD, 1);
+        load(callee);
+        code.op(ACONST_NULL, 1);
+        code.iconst(arity);
+        code.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < arity; i++) {
+            code.op(DUP, 1);
+            code.iconst(i);
+            load(arguments[i]);
+            box(arguments[i].kind);
+            code.op(AASTORE, -3);
+        }
+        finishCall(expr, tail);
+        code.bind(end);
+        return Kind.OBJECT;
+    }
+
+    // Pushes `argument` as the kind of `parameter`, which it was checked to
+    // fit.
+    private void parameter(Local argument, Local parameter) {
+        load(argument);
+        if (parameter.kind == Kind.OBJECT) {
+            box(argument.kind);
+        } else if (argument.kind == Kind.OBJECT) {
+            unbox(code);
+        }
+    }
+
+    @Override
+    public Kind visitGetExpr(Expr.Get expr) {
+        box(compile(expr.object));
+        constant(expr, "com/craftinginterpreters/lox/Expr$Get");
+        helper("get", "(Ljava/lang/Object;" +
+            "Lcom/craftinginterpreters/lox/Expr$Get;)Ljava/lang/Object;");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitSetExpr(Expr.Set expr) {
+        box(compile(expr.object));
+        token(expr.name);
+        helper("instance", "(Ljava/lang/Object;" + TOKEN + ")" + INSTANCE);
+        box(compile(expr.value));
+        constant(expr, "com/craftinginterpreters/lox/Expr$Set");
+        helper("set", "(" + INSTANCE + "Ljava/lang/Object;" +
+            "Lcom/craftinginterpreters/lox/Expr$Set;)Ljava/lang/Object;");
+        return Kind.OBJECT;
+    }
+
+    @Override
+    public Kind visitThisExpr(Expr.This expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Kind visitSuperExpr(Expr.Super expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Kind visitVariableExpr(Expr.Variable expr) {
+        Local local = resolve(expr.depth, expr.slot);
+        if (local == null) {
+            token(expr.name);
+            helper("global", "(" + TOKEN + ")Ljava/lang/Object;");
+            return Kind.OBJECT;
+        }
+        load(local);
+        return local.kind;
+    }
+
+    private void statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement(statement);
+        }
+    }
+
+    private void statement(Stmt stmt) {
+        if (lines) line(stmt.line);
+        stmt.accept(this);
+    }
+
+    // Marks `line` in the interpreter's Profiler, unless it is known to be
+    // marked already.
+    private void line(int line) {
+        // Lines past what sipush can push keep the mark before them.
+        if (line <= 0 || line > Short.MAX_VALUE || line == marked) return;
+        code.local(ALOAD, profiler);
+        code.iconst(line);
+        code.invoke(INVOKEVIRTUAL, "com/craftinginterpreters/lox/Profiler",
+            "line", "(I)V");
+        marked = line;
+    }
+
+    // The line known to be marked where code reached with `a` and with `b`
+    // meets.
+    private static int merge(int a, int b) {
+        if (a == UNREACHABLE) return b;
+        if (b == UNREACHABLE || a == b) return a;
+        return NOT_MARKED;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        pop(compile(stmt.expression));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        box(compile(stmt.expression));
+        helper("print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = new Label();
+        truth(stmt.condition);
+        int condition = marked;
+        code.jump(IFEQ, otherwise);
+        statement(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            code.bind(otherwise);
+            marked = merge(condition, marked);
+            return null;
+        }
+        int thenBranch = marked;
+        Label end = new Label();
+        code.jump(GOTO, end);
+        code.bind(otherwise);
+        marked = condition;
+        statement(stmt.elseBranch);
+        code.bind(end);
+        marked = merge(thenBranch, marked);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Label next = new Label();
+        Label end = new Label();
+        code.bind(next);
+        marked = NOT_MARKED;
+        if (lines) line(stmt.line);
+        truth(stmt.condition);
+        code.jump(IFEQ, end);
+        loops.add(new Loop(next, end));
+        statement(stmt.body);
+        loops.remove(loops.size() - 1);
+        code.jump(GOTO, next);
+        code.bind(end);
+        marked = NOT_MARKED;
+        return null;
+    }
+
+    // Like Interpreter.visitForStmt(), keeps the variable in a double.
+    // Where that fails because the variable isn't a number, the limit is
+    // still evaluated with what the variable holds then, in a JVM local of
+    // its own, before the error is thrown.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Local[] frame = beginScope(stmt, 1);
+        Local variable = frame[0];
+        variable.kind = Kind.DOUBLE;
+        variable.fixed = true;
+
+        Kind kind = compile(stmt.initializer);
+        if (kind == Kind.DOUBLE) {
+            store(variable);
+        } else {
+            box(kind);
+            Local start = temporary(Kind.OBJECT);
+            store(start);
+            Label isNumber = new Label();
+            if (kind == Kind.OBJECT) {
+                load(start);
+                code.type(INSTANCEOF, DOUBLE);
+                code.jump(IFNE, isNumber);
+            }
+            failLoop(stmt, frame, start);
+            code.bind(isNumber);
+            load(start);
+            unbox(code);
+            store(variable);
+        }
+
+        Label top = new Label();
+        Label next = new Label();
+        Label end = new Label();
+        code.bind(top);
+        marked = NOT_MARKED;
+        if (lines) line(stmt.name.line);
+        load(variable);
+        number(stmt.limit, stmt.comparison);
+        switch (stmt.comparison.type) {
+            case LESS:
+                code.op(DCMPG, -3);
+                code.jump(IFGE, end);
+                break;
+            case LESS_EQUAL:
+                code.op(DCMPG, -3);
+                code.jump(IFGT, end);
+                break;
+            case GREATER:
+                code.op(DCMPL, -3);
+                code.jump(IFLE, end);
+                break;
+            default:
+                code.op(DCMPL, -3);
+                code.jump(IFLT, end);
+                break;
+        }
+
+        loops.add(new Loop(next, end));
+        statement(stmt.body);
+        loops.remove(loops.size() - 1);
+
+        // i - step is computed as -step + i, which is exactly the same.
+        code.bind(next);
+        marked = NOT_MARKED;
+        Kind step = compile(stmt.step);
+        if (step == Kind.DOUBLE) {
+            addStep(stmt, variable);
+        } else {
+            box(step);
+            Local value = temporary(Kind.OBJECT);
+            store(value);
+            Label notNumber = new Label();
+            load(value);
+            code.type(INSTANCEOF, DOUBLE);
+            code.jump(IFEQ, notNumber);
+            load(value);
+            unbox(code);
+            addStep(stmt, variable);
+            code.jump(GOTO, top);
+
+            // Steps `i` like binaryOperation() does, which fails or makes it
+            // a string.
+            code.bind(notNumber);
+            load(variable);
+            load(value);
+            token(stmt.increment);
+            helper("step", "(DLjava/lang/Object;" + TOKEN +
+                ")Ljava/lang/Object;");
+            Local stepped = temporary(Kind.OBJECT);
+            store(stepped);
+            failLoop(stmt, frame, stepped);
+        }
+        code.jump(GOTO, top);
+        code.bind(end);
+        marked = NOT_MARKED;
+        endScope();
+        return null;
+    }
+
+    private void addStep(Stmt.For stmt, Local variable) {
+        if (stmt.increment.type == TokenType.MINUS) {
+            code.op(DNEG, 0);
+        }
+        load(variable);
+        code.op(DADD, -2);
+        store(variable);
+    }
+
+    // Evaluates the limit with the loop variable holding `value`, which is
+    // not a number, and throws the error comparing it does.
+    private void failLoop(Stmt.For stmt, Local[] frame, Local value) {
+        Local variable = frame[0];
+        Local holder = new Local(Kind.OBJECT);
+        holder.fixed = true;
+        holder.index = value.index;
+        frame[0] = holder;
+        try {
+            pop(compile(stmt.limit));
+        } finally {
+            frame[0] = variable;
+        }
+        token(stmt.comparison);
+        helper("notNumbers", "(" + TOKEN +
+            ")Lcom/craftinginterpreters/lox/RuntimeError;");
+        code.op(ATHROW, -1);
+        code.unreachable();
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.jump(GOTO, loops.get(loops.size() - 1).end);
+        marked = UNREACHABLE;
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        code.jump(GOTO, loops.get(loops.size() - 1).next);
+        marked = UNREACHABLE;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (stmt.value instanceof Expr.Call &&
+                ((Expr.Call) stmt.value).tail) {
+            call((Expr.Call) stmt.value, true);
+        } else {
+            box(compile(stmt.value));
+        }
+        code.op(ARETURN, -1);
+        code.unreachable();
+        marked = UNREACHABLE;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot < 0) throw new Unsupported();
+        Local local = scopes.get(scopes.size() - 1)[stmt.slot];
+        Kind kind = Kind.OBJECT;
+        if (stmt.initializer != null) {
+            kind = compile(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        assigned(local, kind);
+        convert(kind, local);
+        store(local);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope(stmt, stmt.localCount);
+        statements(stmt.statements);
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        throw new Unsupported();
+    }
+}
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -12,30 +14,193 @@ public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // While set, errors only set hadError and aren't printed. Used to check
+    // code whose errors shouldn't be reported yet.
+    static boolean silent = false;
+
     // We reuse the interpreter because it will have state later.
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = new Interpreter();
+
+    // Set with `--engine=vm`: compile to bytecode and run that on the VM
+    // instead of walking the syntax tree.
+    private static VM vm = null;
+
+    // Cleared with `--no-optimize` to run the syntax tree exactly as parsed.
+    private static boolean optimize = true;
+
+    // Cleared with `--no-jit` to interpret hot functions like the others
+    // instead of compiling them to JVM code.
+    private static boolean compile = true;
+
+    // Where the resolved trees of scripts and modules are kept between runs,
+    // set with `--cache-dir=DIR`. `--no-cache` turns caching off.
+    private static AstCache cache = new AstCache(
+        Paths.get(System.getProperty("user.home"), ".cache", "jlox"));
+
+    // Set with `--restore=FILE` and `--snapshot=FILE`: the globals are
+    // restored from a Snapshot before the script runs, and saved to one
+    // after it ran without errors.
+    private static Path restore = null;
+    private static Path snapshot = null;
+
+    // Set with `--profile`, which samples the running Lox functions and
+    // reports where the time went. `--profile=FILE` also writes the sampled
+    // stacks to FILE for flame graphs.
+    private static Profiler profiler = null;
+    private static Path stacks = null;
+
+    // Each line entered in the REPL is parsed as an edit of the one before,
+    // so entering a line again, or a variation of it, reuses what it can.
+    private static IncrementalParser prompt;
+
+    // Loads imported modules. Kept for the whole session, so that the REPL
+    // only loads a module once.
+    private static ModuleLoader loader;
+
+    // The module the current thread is loading, whose name prefixes the
+    // errors reported in it.
+    static final ThreadLocal<Module> loading = new ThreadLocal<>();
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        String script = null;
+        for (String arg : args) {
+            if (arg.equals("--engine=vm")) {
+                vm = new VM();
+            } else if (arg.equals("--engine=specializing")) {
+                interpreter = new SpecializingInterpreter();
+            } else if (arg.equals("--engine=ast")) {
+                vm = null;
+            } else if (arg.equals("--no-optimize")) {
+                optimize = false;
+            } else if (arg.equals("--no-jit")) {
+                compile = false;
+            } else if (arg.startsWith("--cache-dir=")) {
+                cache = new AstCache(
+                    Paths.get(arg.substring("--cache-dir=".length())));
+            } else if (arg.equals("--no-cache")) {
+                cache = null;
+            } else if (arg.startsWith("--restore=")) {
+                restore = Paths.get(arg.substring("--restore=".length()));
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = Paths.get(arg.substring("--snapshot=".length()));
+            } else if (arg.equals("--profile")) {
+                profiler = new Profiler();
+            } else if (arg.startsWith("--profile=")) {
+                profiler = new Profiler();
+                stacks = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.startsWith("--") || script != null) {
+                usage();
+            } else {
+                script = arg;
+            }
+        }
+
+        if ((snapshot != null || profiler != null) && script == null) {
+            usage();
+        }
+        if (!compile) {
+            interpreter.jit = null;
+        }
+        if (vm != null && (restore != null || snapshot != null)) {
+            System.err.println(
+                "Snapshots are only supported by the tree-walking engines.");
+            System.exit(64);
+        }
+        if (vm != null && profiler != null) {
+            System.err.println(
+                "Profiling is only supported by the tree-walking engines.");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+        interpreter.profiler = profiler;
+        if (profiler != null && interpreter.jit != null) {
+            interpreter.jit.lines = true;
+        }
+        if (restore != null) {
+            try {
+                Snapshot.restore(restore);
+            } catch (NoSuchFileException e) {
+                System.err.println("Could not find snapshot " + restore + ".");
+                System.exit(66);
+            } catch (IOException e) {
+                System.err.println("Could not restore snapshot: " +
+                    e.getMessage());
+                System.exit(66);
+            }
+        }
+
+        loader = new ModuleLoader(optimize, cache);
+        if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println(
+            "Usage: jlox [--engine=ast|specializing|vm] [--no-optimize]" +
+            " [--no-jit] [--cache-dir=DIR | --no-cache] [--restore=FILE]" +
+            " [--snapshot=FILE] [--profile[=FILE]] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path script = Paths.get(path);
+        Charset charset = Charset.defaultCharset();
+
+        List<Stmt> statements = null;
+        String key = null;
+        if (cache != null) {
+            key = AstCache.key(script, charset, optimize);
+            statements = cache.get(key);
+        }
+        if (statements == null) {
+            // The file is decoded and scanned as the parser asks for tokens,
+            // rather than read into one string up front.
+            statements = parse(new Scanner(new InputStreamReader(
+                Files.newInputStream(script), charset)));
+            if (cache != null && !hadError) {
+                cache.put(key, statements);
+            }
+        }
+        if (profiler != null) {
+            profiler.start(statements);
+        }
+        execute(statements, script);
+        if (profiler != null) {
+            profiler.stop();
+            profiler.report(System.err);
+            if (stacks != null) {
+                try {
+                    profiler.writeCollapsed(stacks);
+                } catch (IOException e) {
+                    System.err.println("Could not write profile: " +
+                        e.getMessage());
+                }
+            }
+        }
 
         // Indicate an error in the exit code
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
+
+        if (snapshot != null) {
+            try {
+                Snapshot.save(snapshot);
+            } catch (NoSuchFileException e) {
+                System.err.println("Could not find the directory of snapshot " +
+                    snapshot + ".");
+                System.exit(74);
+            } catch (IOException e) {
+                System.err.println("Could not save snapshot: " +
+                    e.getMessage());
+                System.exit(74);
+            }
+        }
     }
 
     private static void runPrompt() throws IOException {
+        prompt = new IncrementalParser(optimize);
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -56,24 +221,49 @@ public class Lox {
             System.exit(0);
         }
 
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        execute(prompt.parse(source), null);
+    }
+
+    // Returns the statements, resolved and optimized unless there were
+    // errors.
+    private static List<Stmt> parse(Scanner scanner) {
+        Parser parser = new Parser(new TokenBuffer(scanner));
 
-        Parser parser = new Parser(tokens);
-        
         List<Stmt> statements = parser.parse();
         if (hadError) {
-            return;
+            return statements;
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
+        if (optimize && !hadError) {
+            statements = new Optimizer().optimize(statements);
+        }
+        return statements;
+    }
+
+    // Runs resolved (and optimized) statements, and the modules they import,
+    // if there were no errors. `script` is the file they come from, or null
+    // for the REPL.
+    private static void execute(List<Stmt> statements, Path script) {
+        if (hadError) {
+            return;
+        }
 
+        loader.load(statements, script);
         if (hadError) {
             return;
         }
 
-        interpreter.interpret(statements);
+        if (vm != null) {
+            VmFunction function = new BytecodeCompiler(vm).compile(statements);
+            if (hadError) {
+                return;
+            }
+            vm.interpret(function);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     static void error(int line, String msg) {
@@ -88,8 +278,18 @@ public class Lox {
         }
     }
 
-    private static void report(int line, String where, String msg) {
-        System.err.println("[line " + line + "] Error" + where + ": " + msg);
+    // Modules are loaded on several threads at once.
+    private static synchronized void report(int line, String where,
+            String msg) {
+        Module module = loading.get();
+        if (module != null) {
+            module.hadError = true;
+            System.err.println("[" + module.name + " line " + line +
+                "] Error" + where + ": " + msg);
+        } else if (!silent) {
+            System.err.println(
+                "[line " + line + "] Error" + where + ": " + msg);
+        }
         hadError = true;
     }
 
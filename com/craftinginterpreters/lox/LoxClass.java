@@ -1,29 +1,38 @@
 package com.craftinginterpreters.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
+    private static final Symbol INIT = Symbol.intern("init");
+
     final String name;
     final LoxClass superclass;
-    private final Map<String, LoxFunction> methods;
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
-        this.superclass = superclass;
-        this.name = name;
-        this.methods = methods;
-    }
+    // Own and inherited methods. Classes can't change after creation, so the
+    // table is flattened once here and lookups never walk the superclass
+    // chain.
+    final Map<Symbol, LoxFunction> methods;
+    private final LoxFunction initializer;
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+    // Shape of instances that have no fields yet.
+    final Shape rootShape = new Shape(this);
 
+    LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
+        this.superclass = superclass;
+        this.name = name;
         if (superclass != null) {
-            return superclass.findMethod(name);
+            this.methods = new HashMap<>(superclass.methods);
+            this.methods.putAll(methods);
+        } else {
+            this.methods = methods;
         }
+        this.initializer = this.methods.get(INIT);
+    }
 
-        return null;
+    LoxFunction findMethod(Symbol name) {
+        return methods.get(name);
     }
 
     @Override
@@ -34,17 +43,15 @@ class LoxClass implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments, paren);
+            initializer.invoke(interpreter, instance, arguments, paren);
         }
         return instance;
     }
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
-}
\ No newline at end of file
+}
@@ -3,18 +3,44 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    final Stmt.Function declaration;
+    final Environment closure;
+    final boolean isInitializer;
 
-    public LoxFunction(Stmt.Function declaration, Environment closure) {
+    // Methods get their receiver in slot 0 of their scope, ahead of the
+    // parameters.
+    final boolean isMethod;
+
+    // Set on methods that were bound by accessing them as a value. Methods
+    // taken straight from a class table are unbound and must be invoked with
+    // a receiver.
+    final LoxInstance receiver;
+
+    public LoxFunction(Stmt.Function declaration, Environment closure,
+            boolean isInitializer, boolean isMethod) {
+        this(declaration, closure, isInitializer, isMethod, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure,
+            boolean isInitializer, boolean isMethod, LoxInstance receiver) {
         this.declaration = declaration;
         this.closure = closure;
+        this.isInitializer = isInitializer;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment);
+        return new LoxFunction(declaration, closure, isInitializer, isMethod,
+            instance);
+    }
+
+    boolean isUnboundMethod() {
+        return isMethod && receiver == null;
+    }
+
+    LoxInstance receiver() {
+        return receiver;
     }
 
     @Override
@@ -24,19 +50,109 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments, Token paren) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < arguments.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                arguments.get(i));
-        }
+        return invoke(interpreter, receiver, arguments, paren);
+    }
+
+    // Calls the function with `thisValue` as receiver (ignored unless this is
+    // a method), without having to bind it first.
+    //
+    // Tail calls made by the body come back as a Completion.TailCall and are
+    // run by the loop here, so they take no Java stack.
+    Object invoke(Interpreter interpreter, LoxInstance thisValue,
+            List<Object> arguments, Token paren) {
+        LoxFunction function = this;
+        Environment environment = null;
+        Stmt.Function caller = interpreter.running;
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) profiler.enter(declaration);
+        try {
+            while (true) {
+                Stmt.Function code = function.declaration;
+
+                // Hot functions run compiled, unless their code doesn't
+                // fit the arguments, which it checks before doing anything.
+                CompiledFunction compiled = code.compiled;
+                if (compiled == null && interpreter.jit != null) {
+                    compiled = interpreter.jit.profile(function, arguments);
+                }
+                if (compiled != null) {
+                    if (environment != null) {
+                        if (!code.hasClosures) {
+                            interpreter.frames.release(environment);
+                        }
+                        environment = null;
+                    }
+                    Object result = compiled.call(interpreter, arguments);
+                    if (result instanceof Completion.TailCall) {
+                        Completion.TailCall call = (Completion.TailCall) result;
+                        function = call.function;
+                        thisValue = call.receiver;
+                        arguments = call.arguments;
+                        if (profiler != null) {
+                            profiler.replace(function.declaration);
+                        }
+                        continue;
+                    } else if (result != CompiledFunction.DEOPT) {
+                        // Compiled functions are never methods.
+                        return result;
+                    }
+                    interpreter.jit.deoptimize(code, arguments);
+                }
+
+                // Frames no closure can capture come from the interpreter's
+                // pool and go back to it when the call returns.
+                if (environment == null) {
+                    environment = code.hasClosures ?
+                        new Environment(function.closure, code.localCount) :
+                        interpreter.frames.acquire(function.closure,
+                            code.localCount);
+                }
+                // Parameters take the first slots of the function's scope,
+                // after the receiver for methods.
+                int firstParam = 0;
+                if (function.isMethod) {
+                    environment.values[0] = thisValue;
+                    firstParam = 1;
+                }
+                for (int i = 0; i < arguments.size(); i++) {
+                    environment.values[firstParam + i] = arguments.get(i);
+                }
+
+                interpreter.running = code;
+                Completion completion =
+                    interpreter.executeBlock(code.body, environment);
 
-        interpreter.executeBlock(declaration.body, environment);
+                if (!(completion instanceof Completion.TailCall)) {
+                    // Initializers always return the instance. A body that
+                    // ends without a return completes normally, whose value
+                    // is nil.
+                    return function.isInitializer ?
+                        thisValue : completion.value;
+                }
 
-        Object thisValue = null;
-        if (declaration.name.lexeme.equals("init")) {
-            thisValue = closure.getAt(0, "this");
+                // A self tail call keeps using the same frame unless a
+                // closure may still refer to it. Every slot is written again
+                // before it is read.
+                Completion.TailCall call = (Completion.TailCall) completion;
+                if (code.hasClosures || call.function.declaration != code ||
+                        call.function.closure != function.closure) {
+                    if (!code.hasClosures) {
+                        interpreter.frames.release(environment);
+                    }
+                    environment = null;
+                }
+                function = call.function;
+                thisValue = call.receiver;
+                arguments = call.arguments;
+                if (profiler != null) profiler.replace(function.declaration);
+            }
+        } finally {
+            if (profiler != null) profiler.exit();
+            interpreter.running = caller;
+            if (environment != null && !function.declaration.hasClosures) {
+                interpreter.frames.release(environment);
+            }
         }
-        return interpreter.consumeReturnValue(paren, thisValue);
     }
 
     @Override
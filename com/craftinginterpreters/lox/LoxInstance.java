@@ -1,22 +1,28 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    // The shape knows the class and where each field is stored in `fields`.
+    // Both change together whenever a new field is added.
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
-        this.klass = klass;
+        this.shape = klass.rootShape;
+        int capacity = shape.initialCapacity();
+        this.fields = capacity == 0 ? NO_FIELDS : new Object[capacity];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            return fields[index];
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = shape.klass.findMethod(name.symbol);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme
@@ -24,11 +30,27 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            fields[index] = value;
+        } else {
+            addField(shape.withField(name.symbol), value);
+        }
+    }
+
+    // Moves the instance to `next`, which must be its current shape plus one
+    // field, and stores that field's value.
+    void addField(Shape next, Object value) {
+        if (next.fieldCount > fields.length) {
+            fields = Arrays.copyOf(fields,
+                Math.max(next.fieldCount, next.initialCapacity()));
+        }
+        fields[next.fieldCount - 1] = value;
+        shape = next;
     }
 
     @Override
     public String toString() {
-        return klass.name + " instance";
+        return shape.klass.name + " instance";
     }
-}
\ No newline at end of file
+}
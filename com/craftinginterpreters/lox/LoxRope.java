@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+// A Lox string produced by `+`, backed by a StringBuilder that several
+// ropes may share. Each rope is the first `length` characters of its buffer.
+// Appending to the rope that ends at the end of the buffer, which is what
+// `s = s + x` in a loop does, extends the buffer in place, so building a
+// string piece by piece takes linear instead of quadratic time. The plain
+// String is only created when the value is printed or compared.
+//
+// Lox strings are therefore either a String or a LoxRope. Code that needs
+// the characters uses Interpreter.stringify().
+final class LoxRope {
+    // Concatenations shorter than this just produce a String.
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flattened = null;
+
+    private LoxRope(StringBuilder buffer) {
+        this.buffer = buffer;
+        this.length = buffer.length();
+    }
+
+    static boolean isString(Object value) {
+        return value instanceof String || value instanceof LoxRope;
+    }
+
+    // Evaluates `left + right` where at least one operand is a string.
+    static Object concat(Object left, Object right) {
+        String tail = Interpreter.stringify(right);
+        if (left instanceof LoxRope) {
+            return ((LoxRope) left).append(tail);
+        }
+
+        String head = Interpreter.stringify(left);
+        int length = head.length() + tail.length();
+        if (length < MIN_LENGTH) {
+            return head + tail;
+        }
+        return new LoxRope(new StringBuilder(length * 2)
+            .append(head).append(tail));
+    }
+
+    private LoxRope append(String tail) {
+        if (buffer.length() == length) {
+            buffer.append(tail);
+            return new LoxRope(buffer);
+        }
+
+        // Another rope was already appended to this one. Leave the shared
+        // buffer to it and continue on a copy.
+        StringBuilder copy = new StringBuilder((length + tail.length()) * 2);
+        copy.append(buffer, 0, length).append(tail);
+        return new LoxRope(copy);
+    }
+
+    @Override
+    public String toString() {
+        if (flattened == null) {
+            flattened = buffer.substring(0, length);
+        }
+        return flattened;
+    }
+}
@@ -0,0 +1,34 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.file.Path;
+import java.util.List;
+
+// A file named by an `import` statement. ModuleLoader scans, parses and
+// resolves it once, however many imports name it, and the engines run its
+// statements the first time one of those imports runs.
+class Module {
+    final Path path;
+
+    // How errors in the module name it.
+    final String name;
+
+    // Set by the loader once the module is resolved (and optimized).
+    List<Stmt> statements = null;
+
+    // Set while the module is loading if an error was reported in it.
+    boolean hadError = false;
+
+    // Set when its statements start running, so that a cycle of imports
+    // doesn't run a module again.
+    boolean executed = false;
+
+    // The statements compiled for the VM, by the first BytecodeCompiler to
+    // meet an import of the module.
+    boolean compiled = false;
+    VmFunction function = null;
+
+    Module(Path path, String name) {
+        this.path = path;
+        this.name = name;
+    }
+}
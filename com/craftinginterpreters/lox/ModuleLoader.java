@@ -0,0 +1,167 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Loads the modules a program imports, and the modules those import in turn.
+// Nothing about a file depends on the others until it runs, so each one is
+// scanned, parsed, resolved and optimized by a task of its own on a fork-join
+// pool, started as soon as an import of it has been parsed. Modules are kept
+// by absolute path, so a file imported from many places, or again from the
+// REPL, is only loaded once. Their trees are cached on disk like the
+// script's, when there is an AstCache.
+class ModuleLoader {
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final Map<Path, Module> modules = new ConcurrentHashMap<>();
+
+    // Tasks not waited for yet. A task adds the tasks for its own imports
+    // before it completes, so once this is empty everything has loaded.
+    private final Queue<ForkJoinTask<?>> pending =
+        new ConcurrentLinkedQueue<>();
+
+    private final boolean optimize;
+    private final AstCache cache;
+
+    ModuleLoader(boolean optimize, AstCache cache) {
+        this.optimize = optimize;
+        this.cache = cache;
+    }
+
+    // Loads everything `statements` import, directly or not. `script` is the
+    // file they come from, or null for the REPL, whose imports are relative
+    // to the working directory. Errors are reported as they are found.
+    void load(List<Stmt> statements, Path script) {
+        Path directory;
+        if (script != null) {
+            script = script.toAbsolutePath().normalize();
+            // The script is running already, so importing it does nothing.
+            Module main = new Module(script, name(script));
+            main.executed = true;
+            modules.putIfAbsent(script, main);
+            directory = script.getParent();
+        } else {
+            directory = Paths.get("").toAbsolutePath();
+        }
+        link(statements, directory);
+
+        ForkJoinTask<?> task;
+        while ((task = pending.poll()) != null) {
+            task.join();
+        }
+
+        if (Lox.hadError) {
+            // Forget the modules that didn't run, some of which may have
+            // failed, so that importing them again reads them again.
+            modules.values().removeIf(module -> !module.executed);
+        }
+    }
+
+    // Points the imports among `statements` at their modules, starting to
+    // load those that are new. The Resolver only allows imports at the top
+    // level, so nested statements are not searched.
+    private void link(List<Stmt> statements, Path directory) {
+        for (Stmt statement : statements) {
+            if (!(statement instanceof Stmt.Import)) continue;
+            Stmt.Import stmt = (Stmt.Import) statement;
+
+            Path path;
+            try {
+                path = directory.resolve((String) stmt.path.literal)
+                    .normalize();
+            } catch (InvalidPathException e) {
+                Lox.error(stmt.path, "Invalid module path.");
+                continue;
+            }
+
+            Module module = modules.get(path);
+            if (module == null) {
+                if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+                    Lox.error(stmt.path, "Cannot read module.");
+                    continue;
+                }
+                Module created = new Module(path, name(path));
+                module = modules.putIfAbsent(path, created);
+                if (module == null) {
+                    module = created;
+                    pending.add(pool.submit(() -> load(created)));
+                }
+            }
+            stmt.module = module;
+        }
+    }
+
+    private void load(Module module) {
+        Lox.loading.set(module);
+        try {
+            Charset charset = Charset.defaultCharset();
+            List<Stmt> statements = null;
+            String key = null;
+            if (cache != null) {
+                key = AstCache.key(module.path, charset, optimize);
+                statements = cache.get(key);
+            }
+            if (statements != null) {
+                link(statements, module.path.getParent());
+            } else {
+                statements = parse(module, charset);
+                if (module.hadError) {
+                    return;
+                }
+                if (optimize) {
+                    statements = new Optimizer().optimize(statements);
+                }
+                if (cache != null) {
+                    cache.put(key, statements);
+                }
+            }
+            module.statements = statements;
+        } catch (IOException | UncheckedIOException e) {
+            Lox.error(1, "Cannot read module.");
+        } finally {
+            Lox.loading.remove();
+        }
+    }
+
+    // Returns the module's statements, resolved unless there were syntax
+    // errors.
+    private List<Stmt> parse(Module module, Charset charset)
+            throws IOException {
+        try (Reader reader = new InputStreamReader(
+                Files.newInputStream(module.path), charset)) {
+            Parser parser = new Parser(new TokenBuffer(new Scanner(reader)));
+            List<Stmt> statements = parser.parse();
+            if (module.hadError) {
+                return statements;
+            }
+
+            // Start on the imports before resolving this module.
+            link(statements, module.path.getParent());
+
+            new Resolver().resolve(statements);
+            return statements;
+        }
+    }
+
+    // The path relative to the working directory, if there is one.
+    private static String name(Path path) {
+        try {
+            return Paths.get("").toAbsolutePath().relativize(path).toString();
+        } catch (IllegalArgumentException e) {
+            return path.toString();
+        }
+    }
+}
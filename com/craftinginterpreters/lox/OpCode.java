@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set of the bytecode VM. Operands follow the opcode inline in the
+// chunk: constant and jump operands are two bytes (big endian), slot and
+// argument count operands are one byte.
+final class OpCode {
+    static final byte CONSTANT = 0;         // [u16 constant]
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;        // [u8 slot]
+    static final byte SET_LOCAL = 6;        // [u8 slot]
+    static final byte GET_GLOBAL = 7;       // [u16 name]
+    static final byte DEFINE_GLOBAL = 8;    // [u16 name]
+    static final byte SET_GLOBAL = 9;       // [u16 name]
+    static final byte GET_UPVALUE = 10;     // [u8 index]
+    static final byte SET_UPVALUE = 11;     // [u8 index]
+    static final byte GET_PROPERTY = 12;    // [u16 cache]
+    static final byte SET_PROPERTY = 13;    // [u16 cache]
+    static final byte GET_SUPER = 14;       // [u16 cache]
+    static final byte EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte LESS = 18;
+    static final byte LESS_EQUAL = 19;
+    static final byte ADD = 20;
+    static final byte SUBTRACT = 21;
+    static final byte MULTIPLY = 22;
+    static final byte DIVIDE = 23;
+    static final byte NOT = 24;
+    static final byte NEGATE = 25;
+    static final byte PRINT = 26;
+    static final byte JUMP = 27;            // [u16 offset]
+    static final byte JUMP_IF_FALSE = 28;   // [u16 offset]
+    static final byte LOOP = 29;            // [u16 offset]
+    static final byte CALL = 30;            // [u8 argCount]
+    static final byte LOAD_METHOD = 31;     // [u16 cache]
+    static final byte LOAD_SUPER_METHOD = 32; // [u16 cache]
+    static final byte CALL_METHOD = 33;     // [u8 argCount]
+    static final byte CLOSURE = 34;         // [u16 function] ([u8 isLocal, u8 index])*
+    static final byte CLOSE_UPVALUE = 35;
+    static final byte RETURN = 36;
+    static final byte CLASS = 37;           // [u16 name]
+    static final byte INHERIT = 38;
+    static final byte METHOD = 39;          // [u16 name]
+    static final byte IMPORT = 40;          // [u16 module]
+    static final byte TAIL_CALL = 41;       // [u8 argCount]
+    static final byte TAIL_CALL_METHOD = 42; // [u8 argCount]
+
+    private OpCode() {}
+}
@@ -0,0 +1,626 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Simplifies the resolved syntax tree before it is run:
+//
+// - Unary, Binary, Logical and Ternary expressions over literals are folded
+//   into a literal, using the interpreter's own operator semantics. An
+//   operation that would fail at runtime (e.g. `1 / 0` or `-"a"`) is left in
+//   place, so the error is still reported when, and only if, it runs.
+// - `if` statements, ternaries and loops whose condition is a literal lose
+//   the branch that can never run.
+// - Blocks that declare nothing don't need a scope of their own (see
+//   visitBlockStmt()), which removes the extra block the `for` desugaring
+//   wraps around loop bodies.
+// - Numeric `for` loops become a Stmt.For (see countedLoop()).
+//
+// Nodes with nothing to simplify in them are returned as they are. Rebuilt
+// nodes get the Resolver's annotations of the nodes they replace, with
+// variables that were resolved past a dropped scope now resolved one scope
+// less far, so the optimized tree doesn't need to be resolved again.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The scopes the Resolver opened around the node being optimized,
+    // innermost last: true for those of blocks the optimizer drops.
+    private final List<Boolean> scopes = new ArrayList<>();
+    private int droppedScopes = 0;
+
+    // Whether the statement being optimized is the single statement of an
+    // `if` or loop, rather than one of a list of statements.
+    private boolean nested = false;
+
+    // Returns `statements` itself if nothing in them changed.
+    List<Stmt> optimize(List<Stmt> statements) {
+        // Only created once a statement changes.
+        List<Stmt> optimized = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            nested = false;
+            Stmt result = statement.accept(this);
+            if (result == statement && optimized == null) {
+                continue;
+            }
+            if (optimized == null) {
+                optimized = new ArrayList<>(statements.subList(0, i));
+            }
+            if (result == null) {
+                // Removed.
+            } else if (result instanceof Stmt.Block &&
+                    !declaresVariables((Stmt.Block) result)) {
+                // A block whose scope was dropped.
+                optimized.addAll(((Stmt.Block) result).statements);
+            } else {
+                optimized.add(result);
+            }
+        }
+        return optimized == null ? statements : optimized;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Optimizes a statement that must stay a single statement, like the body
+    // of a loop.
+    private Stmt optimizeNested(Stmt stmt) {
+        nested = true;
+        Stmt result = stmt.accept(this);
+        if (result == null) {
+            Stmt.Block empty = new Stmt.Block(Collections.emptyList());
+            empty.line = stmt.line;
+            return empty;
+        }
+        return result;
+    }
+
+    private void beginScope(boolean dropped) {
+        scopes.add(dropped);
+        if (dropped) droppedScopes++;
+    }
+
+    private void endScope() {
+        if (scopes.remove(scopes.size() - 1)) droppedScopes--;
+    }
+
+    // How many scopes out a variable the Resolver found `depth` scopes out
+    // is, once the dropped scopes in between are gone.
+    private int depth(int depth) {
+        if (depth <= 0 || droppedScopes == 0) {
+            return depth;
+        }
+        int result = depth;
+        for (int i = scopes.size() - depth; i < scopes.size(); i++) {
+            if (scopes.get(i)) result--;
+        }
+        return result;
+    }
+
+    private static boolean declaresVariables(Stmt.Block block) {
+        for (Stmt statement : block.statements) {
+            if (isDeclaration(statement)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object constant(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // A block that declares nothing loses its scope: in a list of statements
+    // it is spliced into the list, and as the single statement of an `if` or
+    // loop, a block of one statement is replaced by that statement. This is
+    // decided before its statements are optimized, so the variables they use
+    // can be resolved past the dropped scope as they are.
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        boolean nested = this.nested;
+        Stmt.For loop = countedLoop(stmt);
+        if (loop != null) {
+            return loop;
+        }
+
+        if (declaresVariables(stmt) ||
+                (nested && stmt.statements.size() != 1)) {
+            beginScope(false);
+            List<Stmt> statements = optimize(stmt.statements);
+            endScope();
+            if (statements == stmt.statements) {
+                return stmt;
+            }
+            Stmt.Block block = new Stmt.Block(statements);
+            block.localCount = stmt.localCount;
+            block.hasClosures = stmt.hasClosures;
+            block.line = stmt.line;
+            return block;
+        }
+
+        beginScope(true);
+        Stmt result;
+        if (nested) {
+            result = optimizeNested(stmt.statements.get(0));
+        } else {
+            // Spliced into the list by optimize().
+            result = new Stmt.Block(optimize(stmt.statements));
+        }
+        endScope();
+        return result;
+    }
+
+    // Recognizes the block that `for (var i = a; i < b; i = i + c) body`
+    // desugars to:
+    //
+    //   { var i = a; while (i < b) { body; i = i + c; } }
+    //
+    // Any of `<`, `<=`, `>` and `>=` may be used for the condition, and `+`
+    // or `-` for the increment. The loop variable must not be assigned
+    // anywhere but in the increment nor be captured by a closure, which the
+    // Resolver recorded on its declaration. The body must not `continue` the
+    // loop either: in the desugared loop that skips the increment, while a
+    // Stmt.For always steps. Nor may the body be a declaration, which would
+    // need a slot of its own in the frame of the Stmt.For. The loop variable
+    // is recognized by where the Resolver found it, so that a variable of
+    // the same name declared in the body doesn't count. Returns null for
+    // other blocks.
+    private Stmt.For countedLoop(Stmt.Block block) {
+        if (block.statements.size() != 2 ||
+                !(block.statements.get(0) instanceof Stmt.Var) ||
+                !(block.statements.get(1) instanceof Stmt.While)) {
+            return null;
+        }
+        Stmt.Var variable = (Stmt.Var) block.statements.get(0);
+        Stmt.While loop = (Stmt.While) block.statements.get(1);
+        if (variable.initializer == null || variable.assignments != 1 ||
+                variable.captured) {
+            return null;
+        }
+
+        if (!(loop.condition instanceof Expr.Binary)) return null;
+        Expr.Binary condition = (Expr.Binary) loop.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        // The condition runs in the scope of the block, the increment in
+        // the scope of the loop body nested in it.
+        if (!isVariable(condition.left, variable, 0)) return null;
+
+        if (!(loop.body instanceof Stmt.Block)) return null;
+        List<Stmt> body = ((Stmt.Block) loop.body).statements;
+        if (body.size() != 2 || !(body.get(1) instanceof Stmt.Expression) ||
+                isDeclaration(body.get(0)) || continues(body.get(0))) {
+            return null;
+        }
+        Expr increment = ((Stmt.Expression) body.get(1)).expression;
+        if (!(increment instanceof Expr.Assign)) return null;
+        Expr.Assign assign = (Expr.Assign) increment;
+        if (assign.depth != 1 || assign.slot != variable.slot ||
+                !(assign.value instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary next = (Expr.Binary) assign.value;
+        if (next.operator.type != TokenType.PLUS &&
+                next.operator.type != TokenType.MINUS) {
+            return null;
+        }
+        if (!isVariable(next.left, variable, 1)) return null;
+
+        // The scope of the block becomes that of the loop, which has the
+        // loop variable in the same slot, 0. The scope of the loop body is
+        // dropped.
+        beginScope(false);
+        Expr initializer = optimize(variable.initializer);
+        Expr limit = optimize(condition.right);
+        beginScope(true);
+        Expr step = optimize(next.right);
+        Stmt statement = optimizeNested(body.get(0));
+        endScope();
+        endScope();
+
+        Stmt.For result = new Stmt.For(variable.name, initializer,
+            condition.operator, limit, next.operator, step, statement);
+        result.hasClosures = block.hasClosures;
+        result.line = block.line;
+        return result;
+    }
+
+    // Whether `stmt` has a `continue` of the loop it is the body of, rather
+    // than of a loop nested in it.
+    private static boolean continues(Stmt stmt) {
+        if (stmt instanceof Stmt.Continue) {
+            return true;
+        } else if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                if (continues(statement)) return true;
+            }
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            return continues(ifStmt.thenBranch) ||
+                (ifStmt.elseBranch != null && continues(ifStmt.elseBranch));
+        }
+        return false;
+    }
+
+    private static boolean isDeclaration(Stmt stmt) {
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function ||
+            stmt instanceof Stmt.Class;
+    }
+
+    // Whether `expr` reads `variable` from `depth` scopes up.
+    private static boolean isVariable(Expr expr, Stmt.Var variable,
+            int depth) {
+        if (!(expr instanceof Expr.Variable)) return false;
+        Expr.Variable read = (Expr.Variable) expr;
+        return read.depth == depth && read.slot == variable.slot;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        Expr.Variable superclass = stmt.superclass;
+        if (superclass != null) {
+            superclass = (Expr.Variable) optimize(superclass);
+            // The scope that holds "super".
+            beginScope(false);
+        }
+        List<Stmt.Function> methods = new ArrayList<>();
+        boolean changed = superclass != stmt.superclass;
+        for (Stmt.Function method : stmt.methods) {
+            Stmt.Function optimized = (Stmt.Function) visitFunctionStmt(method);
+            methods.add(optimized);
+            changed |= optimized != method;
+        }
+        if (superclass != null) {
+            endScope();
+        }
+        if (!changed) {
+            return stmt;
+        }
+
+        Stmt.Class result = new Stmt.Class(stmt.name, superclass, methods);
+        result.slot = stmt.slot;
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        // A literal on its own has no effect.
+        if (isConstant(expression)) {
+            return null;
+        }
+        if (expression == stmt.expression) {
+            return stmt;
+        }
+        Stmt.Expression result = new Stmt.Expression(expression);
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        beginScope(false);
+        List<Stmt> body = optimize(stmt.body);
+        endScope();
+        if (body == stmt.body) {
+            return stmt;
+        }
+
+        Stmt.Function result = new Stmt.Function(stmt.name, stmt.params, body);
+        result.slot = stmt.slot;
+        result.localCount = stmt.localCount;
+        result.hasClosures = stmt.hasClosures;
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition)) {
+            if (Interpreter.isTruthy(constant(condition))) {
+                return stmt.thenBranch.accept(this);
+            }
+            return stmt.elseBranch == null ?
+                null : stmt.elseBranch.accept(this);
+        }
+
+        Stmt thenBranch = optimizeNested(stmt.thenBranch);
+        Stmt elseBranch = null;
+        if (stmt.elseBranch != null) {
+            elseBranch = optimizeNested(stmt.elseBranch);
+        }
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+
+        Stmt.If result = new Stmt.If(condition, thenBranch, elseBranch);
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) {
+            return stmt;
+        }
+        Stmt.Print result = new Stmt.Print(expression);
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return stmt;
+        }
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) {
+            return stmt;
+        }
+        Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitImportStmt(Stmt.Import stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            return stmt;
+        }
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) {
+            return stmt;
+        }
+        Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+        result.slot = stmt.slot;
+        result.assignments = stmt.assignments;
+        result.captured = stmt.captured;
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        beginScope(false);
+        Expr initializer = optimize(stmt.initializer);
+        Expr limit = optimize(stmt.limit);
+        Expr step = optimize(stmt.step);
+        Stmt body = optimizeNested(stmt.body);
+        endScope();
+        if (initializer == stmt.initializer && limit == stmt.limit &&
+                step == stmt.step && body == stmt.body) {
+            return stmt;
+        }
+
+        Stmt.For result = new Stmt.For(stmt.name, initializer,
+            stmt.comparison, limit, stmt.increment, step, body);
+        result.hasClosures = stmt.hasClosures;
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition) &&
+                !Interpreter.isTruthy(constant(condition))) {
+            return null;
+        }
+        Stmt body = optimizeNested(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) {
+            return stmt;
+        }
+
+        Stmt.While result = new Stmt.While(condition, body);
+        result.line = stmt.line;
+        return result;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        int depth = depth(expr.depth);
+        if (value == expr.value && depth == expr.depth) {
+            return expr;
+        }
+        Expr.Assign result = new Expr.Assign(expr.name, value);
+        result.depth = depth;
+        result.slot = expr.slot;
+        return result;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left) && isConstant(right)) {
+            try {
+                Object value = Interpreter.binaryOperation(expr.operator,
+                    constant(left), constant(right));
+                // Literals hold plain strings.
+                if (value instanceof LoxRope) {
+                    value = value.toString();
+                }
+                return new Expr.Literal(value);
+            } catch (RuntimeError error) {
+                // Leave it to fail at runtime.
+            }
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        Expr.Binary result = new Expr.Binary(left, expr.operator, right);
+        result.numeric = Resolver.isNumeric(result);
+        return result;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr left = optimize(expr.left);
+        if (isConstant(left)) {
+            return Interpreter.isTruthy(constant(left)) ?
+                optimize(expr.middle) : optimize(expr.right);
+        }
+        Expr middle = optimize(expr.middle);
+        Expr right = optimize(expr.right);
+        if (left == expr.left && middle == expr.middle &&
+                right == expr.right) {
+            return expr;
+        }
+        return new Expr.Ternary(left, expr.leftOperator, middle,
+            expr.rightOperator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        boolean changed = callee != expr.callee;
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        if (!changed) {
+            return expr;
+        }
+        Expr.Call result = new Expr.Call(callee, expr.paren, arguments);
+        result.tail = expr.tail;
+        return result;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (isConstant(expression)) {
+            return expression;
+        }
+        if (expression == expr.expression) {
+            return expr;
+        }
+        Expr.Grouping result = new Expr.Grouping(expression);
+        result.numeric = Interpreter.isNumeric(expression);
+        return result;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (isConstant(left)) {
+            // The result is either the left operand itself or the right one.
+            boolean truthy = Interpreter.isTruthy(constant(left));
+            if (expr.operator.type == TokenType.OR) {
+                return truthy ? left : right;
+            }
+            return truthy ? right : left;
+        }
+        if (left == expr.left && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) {
+            return expr;
+        }
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        int depth = depth(expr.depth);
+        if (depth == expr.depth) {
+            return expr;
+        }
+        Expr.Super result = new Expr.Super(expr.keyword, expr.method);
+        result.depth = depth;
+        return result;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        int depth = depth(expr.depth);
+        if (depth == expr.depth) {
+            return expr;
+        }
+        Expr.This result = new Expr.This(expr.keyword);
+        result.depth = depth;
+        result.slot = expr.slot;
+        return result;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isConstant(right)) {
+            try {
+                return new Expr.Literal(
+                    Interpreter.unaryOperation(expr.operator, constant(right)));
+            } catch (RuntimeError error) {
+                // Leave it to fail at runtime.
+            }
+        }
+        if (right == expr.right) {
+            return expr;
+        }
+        Expr.Unary result = new Expr.Unary(expr.operator, right);
+        result.numeric = expr.numeric;
+        return result;
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        int depth = depth(expr.depth);
+        if (depth == expr.depth) {
+            return expr;
+        }
+        Expr.Variable result = new Expr.Variable(expr.name);
+        result.depth = depth;
+        result.slot = expr.slot;
+        return result;
+    }
+}
@@ -11,15 +11,20 @@ class Parser {
         private static final long serialVersionUID = 2322035634061302440L;
     }
 
-    private final List<Token> tokens;
-    
+    // Only the types of most tokens are looked at. Token objects are created
+    // for the ones that are consumed, end up in the tree or in an error
+    // message.
+    private final TokenBuffer tokens;
+
     // 'Pointer' to current token (we 'scan' tokens now, not characters).
+    // The buffer may be filled as we go, so we never look back more than one
+    // token.
     private int current = 0;
 
     // Counts how deeply nested inside loop constructs we are.
     private int loopNesting;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -32,6 +37,20 @@ class Parser {
         return statements;
     }
 
+    // IncrementalParser parses one top-level declaration at a time, to find
+    // out where each one starts in the source.
+    boolean hasDeclaration() {
+        return !isAtEnd();
+    }
+
+    int offset() {
+        return tokens.offset(current);
+    }
+
+    Stmt nextDeclaration() {
+        return declaration();
+    }
+
     // Check if the current token is one of the given ones, and if so, consume
     // it and returns true. Otherwise, return false and don't consume anything.
     private boolean match(TokenType... types) {
@@ -48,19 +67,18 @@ class Parser {
         if (isAtEnd()) {
             return false;
         } else {
-            return peek().type == type;
+            return tokens.type(current) == type;
         }
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current++;
         }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
@@ -73,7 +91,8 @@ class Parser {
 
     private Token consume(TokenType type, String msg) {
         if (check(type)) {
-            return advance();
+            advance();
+            return tokens.get(current - 1);
         } else {
             throw error(peek(), msg);
         }
@@ -93,13 +112,14 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) {
+            if (tokens.type(current - 1) == SEMICOLON) {
                 return;
             } else {
-                switch (peek().type) {
+                switch (tokens.type(current)) {
                     case CLASS:
                     case FUN:
                     case VAR:
+                    case IMPORT:
                     case FOR:
                     case IF:
                     case WHILE:
@@ -114,7 +134,7 @@ class Parser {
         }
     }
 
-    // declaration → classDecl | funDecl | varDecl | statement ;
+    // declaration → classDecl | funDecl | varDecl | importDecl | statement ;
     private Stmt declaration() {
         try {
             if (match(CLASS)) {
@@ -123,6 +143,8 @@ class Parser {
                 return function("function");
             } else if (match(VAR)) {
                 return varDeclaration();
+            } else if (match(IMPORT)) {
+                return importDeclaration();
             } else {
                 return statement();
             }
@@ -190,6 +212,14 @@ class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    // importDecl → "import" STRING ";" ;
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        consume(SEMICOLON, "Expect ';' after module path.");
+        return new Stmt.Import(keyword, path);
+    }
+
     // statement → printStmt | ifStmt | forStmt | whileStmt | breakStmt
     //     | continueStmt | returnStmt | block | exprStmt;
     private Stmt statement() {
@@ -312,9 +342,15 @@ class Parser {
         Expr condition = expression();
         consume(RIGHT_PAREN,
             "Expect ')' after condition in 'while' statement.");
+        Stmt body;
         loopNesting++;
-        Stmt body = statement();
-        loopNesting--;
+        try {
+            body = statement();
+        } finally {
+            // Even after a syntax error, so later declarations aren't
+            // parsed as if they were inside the loop.
+            loopNesting--;
+        }
 
         return new Stmt.While(condition, body);
     }
@@ -544,7 +580,7 @@ class Parser {
     //     "(" expression ")" | "super" "." IDENTIFIER ;
     private Expr primary() {
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         } else if (match(FALSE)) {
             return new Expr.Literal(false);
         } else if (match(TRUE)) {
@@ -0,0 +1,515 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// A sampling profiler for Lox code, turned on with `--profile`.
+//
+// The interpreter keeps a shadow stack of the Lox functions it is running:
+// LoxFunction.invoke() pushes and pops them, and the Interpreter marks the
+// line each one is at whenever it starts a statement or tests the condition
+// of a loop. The line of every statement is worked out before it runs, so a
+// mark is a single store. A daemon thread copies that stack every 10
+// milliseconds and only stores the copy, so that it takes as little time
+// away from the interpreter as it can. Once sampling has stopped, the
+// stacks are counted up: for each function and each line, the samples it
+// was on top of the stack in (self) and anywhere on it (total).
+//
+// Pushing, popping and replacing a frame is guarded like a seqlock: a count
+// of the changes to the stack is odd while one is being made, and is
+// published with a release store that costs no more than a plain one. The
+// sampler reads the count with an acquire load before and after copying
+// the stack, and copies it again unless it was even and stayed the same, so
+// each sample is a stack that was actually there, even when the sampler
+// interrupts the interpreter halfway through a call. A line that is marked
+// may take a sample longer to show up. A volatile stack, or locking, would
+// slow every call down noticeably.
+final class Profiler {
+    private static final long INTERVAL_MILLIS = 10;
+
+    // How many functions and lines the report lists.
+    private static final int TOP = 20;
+
+    // The bottom frame, which runs the script's top-level code.
+    private static final Stmt.Function SCRIPT = new Stmt.Function(
+        new Token(TokenType.IDENTIFIER, "<script>", null, 0),
+        Collections.emptyList(), Collections.emptyList());
+
+    // The shadow stack. Frame 0 is the script; `depth` is the top frame.
+    // The line the top frame is at is kept in `line`, which is cheaper to
+    // mark, and saved in `lines` when it calls a function.
+    private Stmt.Function[] functions = new Stmt.Function[64];
+    private int[] lines = new int[64];
+    private int depth = 0;
+    private int line = 0;
+    private int changes = 0;
+
+    private static final VarHandle CHANGES;
+
+    static {
+        try {
+            CHANGES = MethodHandles.lookup().findVarHandle(Profiler.class,
+                "changes", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Counts of a function, or of a line of one.
+    private static final class Count {
+        final Stmt.Function function;
+        final int line;
+        long self = 0;
+        long total = 0;
+        // The last sample counted in `total`, so that recursive calls are
+        // only counted once per sample.
+        long sampled = -1;
+
+        Count(Stmt.Function function, int line) {
+            this.function = function;
+            this.line = line;
+        }
+    }
+
+    // A frame of the sampled stacks, merged with the frames below it that
+    // were the same. Written out as collapsed stacks for flame graphs.
+    private static final class Node {
+        final Stmt.Function function;
+        final int line;
+        final List<Node> children = new ArrayList<>();
+        long self = 0;
+
+        Node(Stmt.Function function, int line) {
+            this.function = function;
+            this.line = line;
+        }
+
+        Node child(Stmt.Function function, int line) {
+            for (Node child : children) {
+                if (child.function == function && child.line == line) {
+                    return child;
+                }
+            }
+            Node child = new Node(function, line);
+            children.add(child);
+            return child;
+        }
+    }
+
+    // The sampled stacks, bottom frame first, one after the other. Each
+    // sample only stores the frames above those it shares with the sample
+    // before it, as `shared` tells, so that a deep stack that stays where it
+    // is takes little room. Only touched by the sampler until it has
+    // stopped.
+    private Stmt.Function[] sampledFunctions = new Stmt.Function[1024];
+    private int[] sampledLines = new int[1024];
+    private int frames = 0;
+    private int[] shared = new int[256];
+    private int[] ends = new int[256];
+    private int samples = 0;
+
+    // The counts of the samples, made by stop().
+    private final Map<Stmt.Function, Count> functionCounts = new HashMap<>();
+    private final Map<Stmt.Function, Map<Integer, Count>> lineCounts =
+        new HashMap<>();
+    private final Node root = new Node(null, 0);
+
+    private final Thread sampler = new Thread(this::run, "lox-profiler");
+
+    Profiler() {
+        functions[0] = SCRIPT;
+        sampler.setDaemon(true);
+    }
+
+    // Starts sampling `statements`, the script.
+    void start(List<Stmt> statements) {
+        if (!statements.isEmpty()) line(statements.get(0).line);
+        sampler.start();
+    }
+
+    // Stops sampling, waits for the sampler to finish and counts up the
+    // samples it took.
+    void stop() {
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        count();
+    }
+
+    // Pushes a frame for `function`, at its first statement.
+    void enter(Stmt.Function function) {
+        int change = begin();
+        int top = depth + 1;
+        if (top == functions.length) {
+            functions = Arrays.copyOf(functions, top * 2);
+            lines = Arrays.copyOf(lines, top * 2);
+        }
+        lines[top - 1] = line;
+        functions[top] = function;
+        line = firstLine(function);
+        depth = top;
+        end(change);
+    }
+
+    // Replaces the top frame with `function`, which the one there called in
+    // tail position, if it isn't the same.
+    void replace(Stmt.Function function) {
+        int top = depth;
+        if (functions[top] != function) {
+            int change = begin();
+            functions[top] = function;
+            line = firstLine(function);
+            end(change);
+        }
+    }
+
+    void exit() {
+        int change = begin();
+        int top = depth - 1;
+        line = lines[top];
+        depth = top;
+        end(change);
+    }
+
+    // Makes the count odd until end(), before the stack is changed.
+    private int begin() {
+        int change = changes + 1;
+        changes = change;
+        VarHandle.storeStoreFence();
+        return change;
+    }
+
+    private void end(int change) {
+        CHANGES.setRelease(this, change + 1);
+    }
+
+    // Marks the line the top frame is at.
+    void line(int line) {
+        this.line = line;
+    }
+
+    // The time spent setting up a call is counted towards the first line of
+    // the body, rather than the declaration, which never runs.
+    private static int firstLine(Stmt.Function function) {
+        int line = function.firstLine;
+        if (line < 0) {
+            line = function.body.isEmpty() ?
+                function.name.line : function.body.get(0).line;
+            function.firstLine = line;
+        }
+        return line;
+    }
+
+    // The line `stmt` starts at, kept in Stmt.line by the Resolver and
+    // AstReader so that marking it costs no more than any other line. The
+    // parser doesn't record it, so it is worked out from the first token of
+    // the statement the tree kept. Statements without one, like
+    // `print "a";`, are at `fallback`, the line of the code before them.
+    static int lineOf(Stmt stmt, int fallback) {
+        int line = findLine(stmt);
+        return line != 0 ? line : fallback;
+    }
+
+    private static int findLine(Stmt stmt) {
+        if (stmt instanceof Stmt.Expression) {
+            return lineOf(((Stmt.Expression) stmt).expression);
+        } else if (stmt instanceof Stmt.If) {
+            return lineOf(((Stmt.If) stmt).condition);
+        } else if (stmt instanceof Stmt.Return) {
+            return ((Stmt.Return) stmt).keyword.line;
+        } else if (stmt instanceof Stmt.Var) {
+            return ((Stmt.Var) stmt).name.line;
+        } else if (stmt instanceof Stmt.Print) {
+            return lineOf(((Stmt.Print) stmt).expression);
+        } else if (stmt instanceof Stmt.While) {
+            return lineOf(((Stmt.While) stmt).condition);
+        } else if (stmt instanceof Stmt.For) {
+            return ((Stmt.For) stmt).name.line;
+        } else if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block) stmt).statements;
+            return statements.isEmpty() ? 0 : findLine(statements.get(0));
+        } else if (stmt instanceof Stmt.Function) {
+            return ((Stmt.Function) stmt).name.line;
+        } else if (stmt instanceof Stmt.Class) {
+            return ((Stmt.Class) stmt).name.line;
+        } else if (stmt instanceof Stmt.Break) {
+            return ((Stmt.Break) stmt).keyword.line;
+        } else if (stmt instanceof Stmt.Continue) {
+            return ((Stmt.Continue) stmt).keyword.line;
+        } else if (stmt instanceof Stmt.Import) {
+            return ((Stmt.Import) stmt).keyword.line;
+        }
+        return 0;
+    }
+
+    // The line of the leftmost token of `expr`, or 0 if it has none.
+    static int lineOf(Expr expr) {
+        while (true) {
+            if (expr instanceof Expr.Binary) {
+                expr = ((Expr.Binary) expr).left;
+            } else if (expr instanceof Expr.Variable) {
+                return ((Expr.Variable) expr).name.line;
+            } else if (expr instanceof Expr.Call) {
+                expr = ((Expr.Call) expr).callee;
+            } else if (expr instanceof Expr.Assign) {
+                return ((Expr.Assign) expr).name.line;
+            } else if (expr instanceof Expr.Logical) {
+                expr = ((Expr.Logical) expr).left;
+            } else if (expr instanceof Expr.Get) {
+                expr = ((Expr.Get) expr).object;
+            } else if (expr instanceof Expr.Set) {
+                expr = ((Expr.Set) expr).object;
+            } else if (expr instanceof Expr.Unary) {
+                return ((Expr.Unary) expr).operator.line;
+            } else if (expr instanceof Expr.Grouping) {
+                expr = ((Expr.Grouping) expr).expression;
+            } else if (expr instanceof Expr.Ternary) {
+                expr = ((Expr.Ternary) expr).left;
+            } else if (expr instanceof Expr.This) {
+                return ((Expr.This) expr).keyword.line;
+            } else if (expr instanceof Expr.Super) {
+                return ((Expr.Super) expr).keyword.line;
+            } else {
+                // A literal.
+                return 0;
+            }
+        }
+    }
+
+    private void run() {
+        Stmt.Function[] stackFunctions = new Stmt.Function[64];
+        int[] stackLines = new int[64];
+        Stmt.Function[] previousFunctions = new Stmt.Function[64];
+        int[] previousLines = new int[64];
+        int previousTop = -1;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Copy the stack first, so it changes as little as possible
+            // while it is read. A call or return while it is copied mixes
+            // up two stacks, so then it is copied again.
+            int top = -1;
+            for (int attempt = 0; attempt < 10 && top < 0; attempt++) {
+                int changes = (int) CHANGES.getAcquire(this);
+                if ((changes & 1) != 0) continue;
+                top = depth;
+                int line = this.line;
+                Stmt.Function[] functions = this.functions;
+                int[] lines = this.lines;
+                if (top >= Math.min(functions.length, lines.length)) {
+                    top = -1;
+                    continue;
+                }
+                if (top >= stackFunctions.length) {
+                    stackFunctions = new Stmt.Function[functions.length];
+                    stackLines = new int[functions.length];
+                }
+                System.arraycopy(functions, 0, stackFunctions, 0, top + 1);
+                System.arraycopy(lines, 0, stackLines, 0, top);
+                stackLines[top] = line;
+                VarHandle.acquireFence();
+                if ((int) CHANGES.getAcquire(this) != changes) top = -1;
+            }
+            if (top < 0) continue;
+
+            int same = 0;
+            int most = Math.min(top, previousTop + 1);
+            while (same < most &&
+                    stackFunctions[same] == previousFunctions[same] &&
+                    stackLines[same] == previousLines[same]) {
+                same++;
+            }
+            store(stackFunctions, stackLines, same, top);
+
+            Stmt.Function[] functions = previousFunctions;
+            previousFunctions = stackFunctions;
+            stackFunctions = functions;
+            int[] lines = previousLines;
+            previousLines = stackLines;
+            stackLines = lines;
+            previousTop = top;
+        }
+    }
+
+    // Stores the frames of a sample from `same` to `top`.
+    private void store(Stmt.Function[] functions, int[] lines, int same,
+            int top) {
+        int end = frames + top + 1 - same;
+        if (end > sampledFunctions.length) {
+            int capacity = Math.max(end, sampledFunctions.length * 2);
+            sampledFunctions = Arrays.copyOf(sampledFunctions, capacity);
+            sampledLines = Arrays.copyOf(sampledLines, capacity);
+        }
+        System.arraycopy(functions, same, sampledFunctions, frames,
+            top + 1 - same);
+        System.arraycopy(lines, same, sampledLines, frames, top + 1 - same);
+        frames = end;
+
+        if (samples == ends.length) {
+            shared = Arrays.copyOf(shared, samples * 2);
+            ends = Arrays.copyOf(ends, samples * 2);
+        }
+        shared[samples] = same;
+        ends[samples] = end;
+        samples++;
+    }
+
+    // Counts up the stored samples. The frames a sample shares with the one
+    // before it keep their node and counts.
+    private void count() {
+        Node[] nodes = new Node[64];
+        Count[] functionPath = new Count[64];
+        Count[] linePath = new Count[64];
+        int start = 0;
+        for (int sample = 0; sample < samples; sample++) {
+            int same = shared[sample];
+            int end = ends[sample];
+            int top = same + end - start - 1;
+            if (top >= nodes.length) {
+                int capacity = Math.max(top + 1, nodes.length * 2);
+                nodes = Arrays.copyOf(nodes, capacity);
+                functionPath = Arrays.copyOf(functionPath, capacity);
+                linePath = Arrays.copyOf(linePath, capacity);
+            }
+            for (int i = same; i <= top; i++) {
+                Stmt.Function function = sampledFunctions[start + i - same];
+                int line = sampledLines[start + i - same];
+                nodes[i] = (i == 0 ? root : nodes[i - 1]).child(function, line);
+                functionPath[i] = functionCount(function);
+                linePath[i] = lineCount(function, line);
+            }
+            start = end;
+
+            for (int i = 0; i <= top; i++) {
+                count(functionPath[i], sample, i == top);
+                count(linePath[i], sample, i == top);
+            }
+            nodes[top].self++;
+        }
+    }
+
+    private Count functionCount(Stmt.Function function) {
+        Count count = functionCounts.get(function);
+        if (count == null) {
+            count = new Count(function, function.name.line);
+            functionCounts.put(function, count);
+        }
+        return count;
+    }
+
+    private Count lineCount(Stmt.Function function, int line) {
+        Map<Integer, Count> counts = lineCounts.get(function);
+        if (counts == null) {
+            counts = new HashMap<>();
+            lineCounts.put(function, counts);
+        }
+        Count count = counts.get(line);
+        if (count == null) {
+            count = new Count(function, line);
+            counts.put(line, count);
+        }
+        return count;
+    }
+
+    private static void count(Count count, long sample, boolean self) {
+        if (count.sampled != sample) {
+            count.sampled = sample;
+            count.total++;
+        }
+        if (self) count.self++;
+    }
+
+    // Prints the functions and lines that took the most time, after
+    // sampling has stopped.
+    void report(PrintStream out) {
+        out.println("Profile: " + samples + " samples, " + INTERVAL_MILLIS +
+            " ms apart");
+        if (samples == 0) return;
+
+        out.println();
+        out.println("    self   total  function");
+        List<Count> counts = new ArrayList<>(functionCounts.values());
+        for (Count count : top(counts)) {
+            String name = name(count.function);
+            if (count.function != SCRIPT) {
+                name += " (line " + count.line + ")";
+            }
+            out.println(percentages(count) + "  " + name);
+        }
+
+        out.println();
+        out.println("    self   total  line");
+        counts.clear();
+        for (Map<Integer, Count> lines : lineCounts.values()) {
+            counts.addAll(lines.values());
+        }
+        for (Count count : top(counts)) {
+            out.println(percentages(count) + "  line " + count.line +
+                " in " + name(count.function));
+        }
+    }
+
+    // Writes the sampled stacks in the collapsed format flame graph tools
+    // read: one line per distinct stack, its frames separated by
+    // semicolons, followed by its number of samples. Each frame is a
+    // function and the line it was at.
+    void writeCollapsed(Path path) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(path,
+                StandardCharsets.UTF_8)) {
+            for (Node child : root.children) {
+                writeCollapsed(writer, child, new StringBuilder());
+            }
+        }
+    }
+
+    private void writeCollapsed(Writer writer, Node node, StringBuilder stack)
+            throws IOException {
+        int length = stack.length();
+        if (length > 0) stack.append(';');
+        stack.append(name(node.function)).append(':').append(node.line);
+        if (node.self > 0) {
+            writer.write(stack + " " + node.self + "\n");
+        }
+        for (Node child : node.children) {
+            writeCollapsed(writer, child, stack);
+        }
+        stack.setLength(length);
+    }
+
+    // The counts with the most self time, then total time.
+    private List<Count> top(List<Count> counts) {
+        counts.sort((a, b) -> a.self != b.self ?
+            Long.compare(b.self, a.self) : Long.compare(b.total, a.total));
+        return counts.subList(0, Math.min(TOP, counts.size()));
+    }
+
+    private String percentages(Count count) {
+        return String.format(Locale.ROOT, "%7.1f%% %6.1f%%",
+            100.0 * count.self / samples,
+            100.0 * count.total / samples);
+    }
+
+    private static String name(Stmt.Function function) {
+        return function.name.lexeme;
+    }
+}
@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+// Inline cache of a single property access (Expr.Get or Expr.Set). It keeps
+// the outcome of the lookup for the last few shapes seen at that site, so a
+// hit costs a few reference comparisons instead of hashing the name.
+class PropertyCache {
+    // Beyond this many shapes the site is megamorphic and stops caching.
+    private static final int MAX_ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // Field index, or -1 when the property is a method (gets only).
+    private final int[] indices = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // Shape after the assignment; differs from `shapes` when a set adds the
+    // field (sets only).
+    private final Shape[] targets = new Shape[MAX_ENTRIES];
+    private int size = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        Object value = getUnbound(instance, name);
+        if (value instanceof LoxFunction &&
+                ((LoxFunction) value).isUnboundMethod()) {
+            return ((LoxFunction) value).bind(instance);
+        }
+        return value;
+    }
+
+    // Like get(), but returns methods unbound so a call can invoke them with
+    // the instance as receiver directly. Fields never hold unbound methods,
+    // so those are always found in the class.
+    Object getUnbound(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                int index = indices[i];
+                if (index >= 0) {
+                    return instance.fields[index];
+                }
+                return methods[i];
+            }
+        }
+
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            add(shape, index, null, null);
+            return instance.fields[index];
+        }
+
+        LoxFunction method = shape.klass.findMethod(name.symbol);
+        if (method != null) {
+            add(shape, -1, method, null);
+            return method;
+        }
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme
+            + "'.");
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (targets[i] == shape) {
+                    instance.fields[indices[i]] = value;
+                } else {
+                    instance.addField(targets[i], value);
+                }
+                return;
+            }
+        }
+
+        int index = shape.indexOf(name.symbol);
+        if (index >= 0) {
+            add(shape, index, null, shape);
+            instance.fields[index] = value;
+        } else {
+            Shape next = shape.withField(name.symbol);
+            add(shape, next.fieldCount - 1, null, next);
+            instance.addField(next, value);
+        }
+    }
+
+    private void add(Shape shape, int index, LoxFunction method,
+            Shape target) {
+        if (size == MAX_ENTRIES) return;
+        shapes[size] = shape;
+        indices[size] = index;
+        methods[size] = method;
+        targets[size] = target;
+        size++;
+    }
+}
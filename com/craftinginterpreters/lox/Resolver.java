@@ -6,11 +6,19 @@ import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // The blocks and functions whose scopes are open, innermost last. Each
+    // gets its own Environment at runtime.
+    private final Stack<Stmt> frames = new Stack<>();
+    // Index in `scopes` of the innermost function's scope. Variables from
+    // scopes below it are captured by a closure.
+    private int functionScope = 0;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
+    // The line of the last statement resolved.
+    private int line = 0;
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -24,8 +32,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // A variable declared in a local scope. Slots are handed out in
+    // declaration order, so they index straight into the scope's Environment.
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+        // Set for variables declared by a `var` statement.
+        Stmt.Var declaration = null;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
     }
 
     public void resolve(List<Stmt> statements) {
@@ -35,6 +52,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolve(Stmt stmt) {
+        stmt.line = line = Profiler.lineOf(stmt, line);
         stmt.accept(this);
     }
 
@@ -43,65 +61,133 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }
 
-    private void endScope() {
-        scopes.pop();
+    // Returns the number of slots the scope needs.
+    private int endScope() {
+        return scopes.pop().size();
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+    // Returns the slot of the declared variable, or -1 for a global.
+    private int declare(Token name) {
+        if (scopes.isEmpty()) return -1;
+        Map<String, Local> scope = scopes.peek();
+        Local local = scope.get(name.lexeme);
+        if (local != null) {
             Lox.error(name, "Variable was already declared in this scope.");
+            return local.slot;
         }
-        scope.put(name.lexeme, false); // not initialized yet
+        local = new Local(scope.size()); // not initialized yet
+        scope.put(name.lexeme, local);
+        return local.slot;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true); // initialized
+        scopes.peek().get(name.lexeme).defined = true; // initialized
+    }
+
+    // Declares and defines an implicit variable like "this" or "super".
+    private void defineImplicit(String name) {
+        Map<String, Local> scope = scopes.peek();
+        Local local = new Local(scope.size());
+        local.defined = true;
+        scope.put(name, local);
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Returns how many scopes out the variable was declared, or -1 if it is
+    // global.
+    private int resolveDepth(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
             if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+                return scopes.size() - 1 - i;
             }
         }
 
         // Not found. Assume it's global.
+        return -1;
+    }
+
+    private int resolveSlot(Token name, int depth) {
+        if (depth < 0) return -1;
+        return scopes.get(scopes.size() - 1 - depth).get(name.lexeme).slot;
+    }
+
+    // Records on the declaration of a local `var` how often it is assigned
+    // and whether a closure refers to it.
+    private void noteUse(Token name, int depth, boolean assignment) {
+        if (depth < 0) return;
+        int index = scopes.size() - 1 - depth;
+        Stmt.Var declaration = scopes.get(index).get(name.lexeme).declaration;
+        if (declaration == null) return;
+        if (assignment) {
+            declaration.assignments++;
+        }
+        if (index < functionScope) {
+            declaration.captured = true;
+        }
     }
 
     private void resolveFunction(Stmt.Function stmt, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        markCaptured();
+        stmt.hasClosures = false;
+        frames.push(stmt);
+        int enclosingFunctionScope = functionScope;
+        functionScope = scopes.size();
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // Methods receive "this" in slot 0 of their own scope.
+            defineImplicit("this");
+        }
         for (Token param : stmt.params) {
             declare(param);
             define(param);
         }
         resolve(stmt.body);
-        endScope();
+        stmt.localCount = endScope();
+        functionScope = enclosingFunctionScope;
+        frames.pop();
         currentFunction = enclosingFunction;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.hasClosures = false;
+        frames.push(stmt);
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.localCount = endScope();
+        frames.pop();
         return null;
     }
 
+    // Called when a function or method is declared: the closure can outlive
+    // every frame it is nested in, up to and including the frame of the
+    // enclosing function. Frames further out are captured by that enclosing
+    // function itself and were marked when it was declared.
+    private void markCaptured() {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            Stmt frame = frames.get(i);
+            if (frame instanceof Stmt.Function) {
+                ((Stmt.Function) frame).hasClosures = true;
+                return;
+            } else if (frame instanceof Stmt.For) {
+                ((Stmt.For) frame).hasClosures = true;
+            } else {
+                ((Stmt.Block) frame).hasClosures = true;
+            }
+        }
+    }
+
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         if (stmt.superclass != null &&
@@ -116,12 +202,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            defineImplicit("super");
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -130,8 +213,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -140,7 +221,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
+        stmt.assignments = 0;
+        stmt.captured = false;
+        if (stmt.slot >= 0) {
+            scopes.peek().get(stmt.name.lexeme).declaration = stmt;
+        }
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -150,26 +236,32 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Cannot read local variable in its own " +
-                "initializer.");
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                Lox.error(expr.name, "Cannot read local variable in its " +
+                    "own initializer.");
+            }
         }
 
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+        noteUse(expr.name, expr.depth, false);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveDepth(expr.name);
+        expr.slot = resolveSlot(expr.name, expr.depth);
+        noteUse(expr.name, expr.depth, true);
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name); // Eagerly define so it can call itself.
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -206,6 +298,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 Lox.error(stmt.keyword, "Cannot return a value from an initializer.");
             }
             resolve(stmt.value);
+            if (stmt.value instanceof Expr.Call) {
+                ((Expr.Call) stmt.value).tail = true;
+            }
         }
         return null;
     }
@@ -217,6 +312,24 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        stmt.hasClosures = false;
+        frames.push(stmt);
+        // The loop variable is the only variable of the loop's own scope, so
+        // it always lives in slot 0.
+        beginScope();
+        declare(stmt.name);
+        resolve(stmt.initializer);
+        define(stmt.name);
+        resolve(stmt.limit);
+        resolve(stmt.step);
+        resolve(stmt.body);
+        endScope();
+        frames.pop();
+        return null;
+    }
+
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
         return null;
@@ -227,13 +340,40 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        // A module runs in the global scope, so it may only be imported
+        // there.
+        if (!scopes.isEmpty()) {
+            Lox.error(stmt.keyword, "Can only import at the top level.");
+        }
+        return null;
+    }
+
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
+        expr.numeric = isNumeric(expr);
         return null;
     }
 
+    // `-`, `*` and `/` either produce a number or fail, `+` only does so
+    // when both operands are numeric.
+    static boolean isNumeric(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return true;
+            case PLUS:
+                return Interpreter.isNumeric(expr.left) &&
+                    Interpreter.isNumeric(expr.right);
+            default:
+                return false;
+        }
+    }
+
     @Override
     public Void visitTernaryExpr(Expr.Ternary expr) {
         resolve(expr.left);
@@ -244,6 +384,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitCallExpr(Expr.Call expr) {
+        expr.tail = false;
         resolve(expr.callee);
         for (Expr arg : expr.arguments) {
             resolve(arg);
@@ -260,6 +401,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
+        expr.numeric = Interpreter.isNumeric(expr.expression);
         return null;
     }
 
@@ -289,7 +431,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 + "subclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword);
         return null;
     }
 
@@ -299,13 +441,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Cannot use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveDepth(expr.keyword);
+        expr.slot = resolveSlot(expr.keyword, expr.depth);
         return null;
     }
 
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
+        expr.numeric = expr.operator.type == TokenType.MINUS;
         return null;
     }
 }
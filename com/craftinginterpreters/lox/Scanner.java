@@ -1,39 +1,38 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static com.craftinginterpreters.lox.TokenType.*; 
 
 public class Scanner {
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-        keywords.put("break", BREAK);
-        keywords.put("continue", CONTINUE);
-    }
+    // Punctuation and keywords always have the same lexeme, so each is only
+    // created once and shared by all of their tokens.
+    private static final String[] lexemes =
+        new String[TokenType.values().length];
+
+    // Exact powers of ten, for parseNumber().
+    private static final double[] powersOfTen = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+        1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Where more source comes from, or null once it has all been read into
+    // the buffer.
+    private Reader reader;
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // A window onto the source. Characters before the current lexeme are
+    // dropped whenever more is read, so a large file is never held in memory
+    // at once. Only the first `limit` characters are valid.
+    private char[] buffer;
+    private int limit;
+
+    // The offset in the source of buffer[0].
+    private int dropped = 0;
 
     // The first character in the current lexeme being scanned
     private int start = 0;
@@ -45,23 +44,112 @@ public class Scanner {
     // location.
     private int line = 1;
 
+    // The token scanned by the last call to scanToken(), if any, in the
+    // pieces a TokenBuffer stores.
+    private TokenType tokenType;
+    private String tokenLexeme;
+    private Object tokenValue;
+
+    // Set once the EOF token has been added.
+    private boolean done = false;
+
     public Scanner(String source) {
-        this.source = source;
+        this.reader = null;
+        this.buffer = source.toCharArray();
+        this.limit = buffer.length;
+    }
+
+    // Scans only source[from, to), which starts on the given line. Token
+    // offsets are still relative to the start of `source`.
+    Scanner(String source, int from, int to, int line) {
+        this.reader = null;
+        this.buffer = new char[to - from];
+        source.getChars(from, to, buffer, 0);
+        this.limit = buffer.length;
+        this.dropped = from;
+        this.line = line;
+    }
+
+    // Scans the source as it is read. The reader is closed when it runs out.
+    public Scanner(Reader reader) {
+        this.reader = reader;
+        this.buffer = new char[BUFFER_SIZE];
+        this.limit = 0;
+    }
+
+    public TokenBuffer scanTokens() {
+        TokenBuffer tokens = new TokenBuffer();
+        while (scanNext(tokens)) {
+        }
+        return tokens;
     }
 
-    public List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Scans just far enough to add the next token to `tokens`. After the
+    // last one comes an EOF token; after that, returns false and adds
+    // nothing.
+    boolean scanNext(TokenBuffer tokens) {
+        if (done) {
+            return false;
+        }
+
+        tokenType = null;
+        while (tokenType == null && !isAtEnd()) {
             // We are at the beginning of the next lexeme
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+        if (tokenType == null) {
+            done = true;
+            tokens.add(EOF, "", null, line, dropped + current);
+        } else {
+            tokens.add(tokenType, tokenLexeme, tokenValue, line,
+                dropped + start);
+        }
+        return true;
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(1);
+    }
+
+    // Makes sure there are at least `count` characters in the buffer from
+    // `current` on, reading more if needed. Returns false if the source ends
+    // first.
+    private boolean available(int count) {
+        while (current + count > limit) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() {
+        if (reader == null) return false;
+
+        // Move the current lexeme to the front, growing the buffer only when
+        // the lexeme itself fills it.
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            dropped += start;
+            current -= start;
+            start = 0;
+        } else if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+
+        try {
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read == -1) {
+                reader.close();
+                reader = null;
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     private void scanToken() {
@@ -91,7 +179,8 @@ public class Scanner {
                     // Ignore (`advance()`) everything until that.
                     // But don't consume newlines, we'll only peek those because
                     // the line counter has to be incremented.
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    // Nor keep it in the buffer: move `start` along with it.
+                    while (peek() != '\n' && !isAtEnd()) start = ++current;
                     // We don't add a token for the comment.
                 } else if (match('*')) {
                     cStyleComment();
@@ -130,15 +219,78 @@ public class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        // See if the identifier is a reserved keyword. Otherwise it is an
-        // identifier.
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) {
-            type = IDENTIFIER;
+        TokenType type = keywordType();
+        if (type != IDENTIFIER) {
+            addToken(type);
+            return;
         }
 
-        addToken(type);
+        // Interning looks the name up straight from the source, so repeated
+        // identifiers share one Symbol and one String.
+        Symbol symbol = Symbol.intern(buffer, start, current);
+        tokenType = IDENTIFIER;
+        tokenLexeme = symbol.name;
+        tokenValue = symbol;
+    }
+
+    // Recognizes keywords by walking their characters, like a trie, so an
+    // identifier is never hashed just to find out it is a keyword.
+    private TokenType keywordType() {
+        switch (buffer[start]) {
+            case 'a': return keyword(1, "nd", AND);
+            case 'b': return keyword(1, "reak", BREAK);
+            case 'c':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'l': return keyword(2, "ass", CLASS);
+                        case 'o': return keyword(2, "ntinue", CONTINUE);
+                    }
+                }
+                break;
+            case 'e': return keyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'a': return keyword(2, "lse", FALSE);
+                        case 'o': return keyword(2, "r", FOR);
+                        case 'u': return keyword(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'f': return keyword(2, "", IF);
+                        case 'm': return keyword(2, "port", IMPORT);
+                    }
+                }
+                break;
+            case 'n': return keyword(1, "il", NIL);
+            case 'o': return keyword(1, "r", OR);
+            case 'p': return keyword(1, "rint", PRINT);
+            case 'r': return keyword(1, "eturn", RETURN);
+            case 's': return keyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (buffer[start + 1]) {
+                        case 'h': return keyword(2, "is", THIS);
+                        case 'r': return keyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", VAR);
+            case 'w': return keyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    // Returns `type` if the rest of the lexeme, from `offset` on, is `rest`.
+    private TokenType keyword(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (buffer[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private void number() {
@@ -153,7 +305,34 @@ public class Scanner {
         }
 
         // Add the number as a token.
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, parseNumber(start, current));
+    }
+
+    // Parses the digits, with an optional fraction, that number() scanned.
+    // When both the digits and the power of ten are exact doubles, a single
+    // division gives the correctly rounded value, the same as
+    // Double.parseDouble() would, without creating a string. Longer numbers
+    // fall back to it.
+    private double parseNumber(int from, int to) {
+        long digits = 0;
+        int count = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (int i = from; i < to; i++) {
+            char c = buffer[i];
+            if (c == '.') {
+                fraction = true;
+                continue;
+            }
+            digits = digits * 10 + (c - '0');
+            count++;
+            if (fraction) scale++;
+        }
+
+        if (count <= 15 && scale < powersOfTen.length) {
+            return digits / powersOfTen[scale];
+        }
+        return Double.parseDouble(text(from, to));
     }
 
     private void string() {
@@ -171,13 +350,15 @@ public class Scanner {
         advance();
 
         // Trim surrounding "s and add the string as token.
-        String value = source.substring(start + 1, current - 1);
+        String value = text(start + 1, current - 1);
         addToken(STRING, value);
     }
 
     private void cStyleComment() {
         int nesting = 1;
         while (nesting > 0) {
+            // The comment isn't kept, so the buffer may drop what's been read.
+            start = current;
             if (isAtEnd()) {
                 Lox.error(line, "Unterminated C-style comment.");
                 return;
@@ -206,7 +387,7 @@ public class Scanner {
     private boolean match(char expected) {
         if (isAtEnd()) {
             return false;
-        } else if (source.charAt(current) != expected) {
+        } else if (buffer[current] != expected) {
             return false;
         } else {
             current++;
@@ -217,12 +398,12 @@ public class Scanner {
     // Sort of like `advance()`, but don't consume the character just yet.
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(2)) return '\0';
+        return buffer[current + 1];
     }
 
     private boolean isDigit(char c) {
@@ -240,17 +421,30 @@ public class Scanner {
     // Consume the next character in the source and return it.
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
-    // Create a new token for the current lexeme
+    private String text(int from, int to) {
+        return new String(buffer, from, to - from);
+    }
+
+    // Create a new token for the current lexeme, which is always the same
+    // for this type.
     private void addToken(TokenType type) {
-        addToken(type, null);
+        String lexeme = lexemes[type.ordinal()];
+        if (lexeme == null) {
+            lexeme = text(start, current);
+            lexemes[type.ordinal()] = lexeme;
+        }
+        tokenType = type;
+        tokenLexeme = lexeme;
+        tokenValue = null;
     }
     
     // Create a new token for the current lexeme
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokenType = type;
+        tokenLexeme = text(start, current);
+        tokenValue = literal;
     }
 }
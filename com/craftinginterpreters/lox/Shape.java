@@ -0,0 +1,76 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Hidden class describing which fields an instance has and at which index of
+// its field array each one is stored. Every LoxClass and VmClass has its own
+// root shape, and instances that gain the same fields in the same order end
+// up sharing a shape, so a shape also identifies the class of its instances.
+class Shape {
+    // Null for the shapes of a VmClass, whose instances know their class.
+    final LoxClass klass;
+    final int fieldCount;
+
+    // Field name to index in LoxInstance.fields or VmInstance.fields.
+    private final Map<Symbol, Integer> indices;
+
+    // Shapes reached from this one by adding a field. Created on demand.
+    private Map<Symbol, Shape> transitions = null;
+
+    private final Shape root;
+
+    // Largest field count of any shape derived from this root. New instances
+    // start with a field array this big, so they rarely have to grow it.
+    private int maxFieldCount = 0;
+
+    Shape(LoxClass klass) {
+        this.klass = klass;
+        this.fieldCount = 0;
+        this.indices = new HashMap<>();
+        this.root = this;
+    }
+
+    private Shape(Shape parent, Symbol name) {
+        this.klass = parent.klass;
+        this.fieldCount = parent.fieldCount + 1;
+        this.indices = new HashMap<>(parent.indices);
+        this.indices.put(name, parent.fieldCount);
+        this.root = parent.root;
+        if (fieldCount > root.maxFieldCount) {
+            root.maxFieldCount = fieldCount;
+        }
+    }
+
+    // Returns the index of the field, or -1 if instances of this shape don't
+    // have it.
+    int indexOf(Symbol name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Shape withField(Symbol name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+
+    // The names of the fields, in the order of their indices.
+    Symbol[] fieldNames() {
+        Symbol[] names = new Symbol[fieldCount];
+        for (Map.Entry<Symbol, Integer> entry : indices.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        return names;
+    }
+
+    int initialCapacity() {
+        return root.maxFieldCount;
+    }
+}
@@ -0,0 +1,398 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Saves the global state of the tree-walking interpreter to a file and
+// restores it in another process, so a program can start from the state a
+// prelude left behind instead of running the prelude again.
+//
+// Everything reachable from the globals is saved: functions with the
+// environments they closed over, classes and instances. Function bodies are
+// written with AstWriter, annotations included, so they run without being
+// resolved again. Native functions are saved by the name the interpreter
+// defined them under, not that of some alias a script made, and found again
+// by that name. Strings built by `+` are saved as plain strings.
+//
+// Closures and instances may refer to each other in cycles, so objects are
+// saved in two parts: first how to create each object, in an order where
+// every object comes after the objects it needs to be created, and then the
+// contents of environments and instances, which may refer to any object.
+final class Snapshot {
+    // Bump when this format or AstWriter's changes.
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {
+        'l', 'o', 'x', 's', 'n', 'a', 'p', VERSION
+    };
+
+    // Object kinds.
+    private static final int ENVIRONMENT = 0;
+    private static final int FUNCTION = 1;
+    private static final int CLASS = 2;
+    private static final int INSTANCE = 3;
+
+    // Value tags, after those of AstWriter.writeValue().
+    private static final int OBJECT = 5;
+    private static final int NATIVE = 6;
+
+    // References to the global environment, and to nothing.
+    private static final int GLOBALS = -1;
+    private static final int NONE = -2;
+
+    private Snapshot() {}
+
+    static void save(Path file) throws IOException {
+        Saver saver = new Saver();
+        saver.save();
+
+        // Written under a name of its own and then renamed into place, so a
+        // save that fails halfway leaves any earlier snapshot as it was.
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory,
+            file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                out.write(MAGIC);
+                saver.out.writeTo(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    static void restore(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (i >= bytes.length || bytes[i] != MAGIC[i]) {
+                throw new IOException("Not a snapshot of this version.");
+            }
+        }
+        AstReader in = new AstReader(bytes, MAGIC.length, bytes.length);
+        new Restorer(in).restore();
+        if (!in.isAtEnd()) throw corrupt();
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt snapshot.");
+    }
+
+    private static class Saver {
+        final AstWriter out = new AstWriter();
+        final Map<Symbol, Object> globals = Interpreter.globals.globals;
+
+        // Every object to save, in the order they are created when restored.
+        final List<Object> objects = new ArrayList<>();
+        final Map<Object, Integer> ids = new IdentityHashMap<>();
+        final Map<Stmt.Function, Integer> declarations =
+            new IdentityHashMap<>();
+
+        // Environments and instances whose contents haven't been looked at.
+        final ArrayDeque<Object> unvisited = new ArrayDeque<>();
+
+        final Map<Object, Symbol> natives = new IdentityHashMap<>();
+
+        void save() throws IOException {
+            for (Map.Entry<Symbol, LoxCallable> entry :
+                    Interpreter.natives.entrySet()) {
+                natives.put(entry.getValue(), entry.getKey());
+            }
+
+            for (Object value : globals.values()) {
+                add(value);
+            }
+            while (!unvisited.isEmpty()) {
+                Object object = unvisited.pop();
+                if (object instanceof Environment) {
+                    for (Object value : ((Environment) object).values) {
+                        add(value);
+                    }
+                    addEnvironment(((Environment) object).enclosing);
+                } else {
+                    for (Object value : ((LoxInstance) object).fields) {
+                        add(value);
+                    }
+                }
+            }
+
+            out.writeInt(objects.size());
+            for (Object object : objects) {
+                writeCreation(object);
+            }
+            for (Object object : objects) {
+                writeContents(object);
+            }
+            out.writeInt(globals.size());
+            for (Map.Entry<Symbol, Object> global : globals.entrySet()) {
+                out.writeString(global.getKey().name);
+                writeValue(global.getValue());
+            }
+        }
+
+        // Adds the object `value` refers to, after the objects needed to
+        // create it.
+        void add(Object value) throws IOException {
+            if (value == null || ids.containsKey(value)) return;
+
+            if (value instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) value;
+                addEnvironment(function.closure);
+                add(function.receiver);
+                register(function);
+            } else if (value instanceof LoxClass) {
+                LoxClass klass = (LoxClass) value;
+                add(klass.superclass);
+                for (LoxFunction method : klass.methods.values()) {
+                    add(method);
+                }
+                register(klass);
+            } else if (value instanceof LoxInstance) {
+                add(((LoxInstance) value).shape.klass);
+                register(value);
+                unvisited.push(value);
+            } else if (value instanceof LoxCallable &&
+                    !natives.containsKey(value)) {
+                throw new IOException(
+                    "Cannot save a native function that isn't built in.");
+            }
+        }
+
+        void addEnvironment(Environment environment) {
+            if (environment == null || environment == Interpreter.globals ||
+                    ids.containsKey(environment)) {
+                return;
+            }
+            register(environment);
+            unvisited.push(environment);
+        }
+
+        void register(Object object) {
+            ids.put(object, objects.size());
+            objects.add(object);
+        }
+
+        void writeCreation(Object object) {
+            if (object instanceof Environment) {
+                out.writeInt(ENVIRONMENT);
+                out.writeInt(((Environment) object).values.length);
+            } else if (object instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) object;
+                out.writeInt(FUNCTION);
+                writeDeclaration(function.declaration);
+                writeEnvironment(function.closure);
+                out.writeBoolean(function.isInitializer);
+                out.writeBoolean(function.isMethod);
+                out.writeInt(function.receiver == null ?
+                    NONE : ids.get(function.receiver));
+            } else if (object instanceof LoxClass) {
+                LoxClass klass = (LoxClass) object;
+                out.writeInt(CLASS);
+                out.writeString(klass.name);
+                out.writeInt(klass.superclass == null ?
+                    NONE : ids.get(klass.superclass));
+                out.writeInt(klass.methods.size());
+                for (Map.Entry<Symbol, LoxFunction> method :
+                        klass.methods.entrySet()) {
+                    out.writeString(method.getKey().name);
+                    out.writeInt(ids.get(method.getValue()));
+                }
+            } else {
+                out.writeInt(INSTANCE);
+                out.writeInt(ids.get(((LoxInstance) object).shape.klass));
+            }
+        }
+
+        void writeContents(Object object) {
+            if (object instanceof Environment) {
+                Environment environment = (Environment) object;
+                writeEnvironment(environment.enclosing);
+                for (Object value : environment.values) {
+                    writeValue(value);
+                }
+            } else if (object instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance) object;
+                Symbol[] names = instance.shape.fieldNames();
+                out.writeInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    out.writeString(names[i].name);
+                    writeValue(instance.fields[i]);
+                }
+            }
+        }
+
+        // Each declaration is written once, where it is first used.
+        void writeDeclaration(Stmt.Function declaration) {
+            Integer index = declarations.get(declaration);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            out.writeInt(declarations.size());
+            declarations.put(declaration, declarations.size());
+            out.write(declaration);
+        }
+
+        void writeEnvironment(Environment environment) {
+            if (environment == null) {
+                out.writeInt(NONE);
+            } else if (environment == Interpreter.globals) {
+                out.writeInt(GLOBALS);
+            } else {
+                out.writeInt(ids.get(environment));
+            }
+        }
+
+        void writeValue(Object value) {
+            Integer id = value == null ? null : ids.get(value);
+            if (id != null) {
+                out.writeInt(OBJECT);
+                out.writeInt(id);
+            } else if (natives.containsKey(value)) {
+                out.writeInt(NATIVE);
+                out.writeString(natives.get(value).name);
+            } else {
+                out.writeValue(value);
+            }
+        }
+    }
+
+    private static class Restorer {
+        final AstReader in;
+        final Environment globals = Interpreter.globals;
+
+        final Map<Symbol, LoxCallable> natives = Interpreter.natives;
+
+        final List<Object> objects = new ArrayList<>();
+        final List<Stmt.Function> declarations = new ArrayList<>();
+
+        Restorer(AstReader in) {
+            this.in = in;
+        }
+
+        void restore() throws IOException {
+            int count = in.readInt();
+            if (count < 0) throw corrupt();
+            for (int i = 0; i < count; i++) {
+                objects.add(readCreation());
+            }
+            for (Object object : objects) {
+                readContents(object);
+            }
+            int globalCount = in.readInt();
+            for (int i = 0; i < globalCount; i++) {
+                Symbol name = Symbol.intern(in.readString());
+                globals.define(name, readValue());
+            }
+        }
+
+        Object readCreation() throws IOException {
+            switch (in.readInt()) {
+                case ENVIRONMENT: {
+                    int size = in.readInt();
+                    if (size < 0) throw corrupt();
+                    return new Environment(null, size);
+                }
+                case FUNCTION: {
+                    Stmt.Function declaration = readDeclaration();
+                    Environment closure = readEnvironment();
+                    boolean isInitializer = in.readBoolean();
+                    boolean isMethod = in.readBoolean();
+                    int receiver = in.readInt();
+                    return new LoxFunction(declaration, closure,
+                        isInitializer, isMethod, receiver == NONE ?
+                        null : object(receiver, LoxInstance.class));
+                }
+                case CLASS: {
+                    String name = in.readString();
+                    int superclass = in.readInt();
+                    int methodCount = in.readInt();
+                    Map<Symbol, LoxFunction> methods = new HashMap<>();
+                    for (int i = 0; i < methodCount; i++) {
+                        Symbol method = Symbol.intern(in.readString());
+                        methods.put(method,
+                            object(in.readInt(), LoxFunction.class));
+                    }
+                    return new LoxClass(name, superclass == NONE ?
+                        null : object(superclass, LoxClass.class), methods);
+                }
+                case INSTANCE:
+                    return new LoxInstance(
+                        object(in.readInt(), LoxClass.class));
+                default:
+                    throw corrupt();
+            }
+        }
+
+        void readContents(Object object) throws IOException {
+            if (object instanceof Environment) {
+                Environment environment = (Environment) object;
+                environment.enclosing = readEnvironment();
+                for (int i = 0; i < environment.values.length; i++) {
+                    environment.values[i] = readValue();
+                }
+            } else if (object instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance) object;
+                int fieldCount = in.readInt();
+                for (int i = 0; i < fieldCount; i++) {
+                    Symbol name = Symbol.intern(in.readString());
+                    // Adding the fields in order rebuilds the same shape.
+                    instance.addField(instance.shape.withField(name),
+                        readValue());
+                }
+            }
+        }
+
+        Stmt.Function readDeclaration() throws IOException {
+            int index = in.readInt();
+            if (index >= 0 && index < declarations.size()) {
+                return declarations.get(index);
+            }
+            if (index != declarations.size()) throw corrupt();
+            Stmt declaration = in.readStmt();
+            if (!(declaration instanceof Stmt.Function)) throw corrupt();
+            declarations.add((Stmt.Function) declaration);
+            return (Stmt.Function) declaration;
+        }
+
+        Environment readEnvironment() throws IOException {
+            int id = in.readInt();
+            if (id == NONE) return null;
+            if (id == GLOBALS) return globals;
+            return object(id, Environment.class);
+        }
+
+        Object readValue() throws IOException {
+            int tag = in.readInt();
+            switch (tag) {
+                case OBJECT:
+                    return object(in.readInt(), Object.class);
+                case NATIVE: {
+                    Object value = natives.get(Symbol.intern(in.readString()));
+                    if (value == null) throw corrupt();
+                    return value;
+                }
+                default:
+                    return in.readValue(tag);
+            }
+        }
+
+        // Objects can only refer to those created before them.
+        <T> T object(int id, Class<T> type) throws IOException {
+            if (id < 0 || id >= objects.size() ||
+                    !type.isInstance(objects.get(id))) {
+                throw corrupt();
+            }
+            return type.cast(objects.get(id));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.craftinginterpreters.lox;
+
+// Tree-walking interpreter whose operator nodes specialize themselves on the
+// operand types they see (see `--engine=specializing`).
+//
+// Every Binary, Unary and Logical node starts out uninitialized. Its first
+// execution picks a specialization for the types it saw, e.g. "+ on two
+// numbers", and stores it in the node. Later executions run only that case,
+// guarded by a cheap type check. When a guard fails the node rewrites itself
+// to the generic version for good, so a node changes state at most twice.
+class SpecializingInterpreter extends Interpreter {
+    private static final int UNINITIALIZED = 0;
+    private static final int GENERIC = 1;
+
+    // `-`, `*`, `/` and unary `-` always produce numbers, so those nodes are
+    // evaluated unboxed by evaluateDouble() and never need specializing.
+    private static final int ADD_NUMBERS = 2;
+    private static final int GREATER_NUMBERS = 3;
+    private static final int GREATER_EQUAL_NUMBERS = 4;
+    private static final int LESS_NUMBERS = 5;
+    private static final int LESS_EQUAL_NUMBERS = 6;
+    private static final int EQUAL_NUMBERS = 7;
+    private static final int NOT_EQUAL_NUMBERS = 8;
+    // String + anything, and anything + String.
+    private static final int CONCAT_STRING_LEFT = 9;
+    private static final int CONCAT_STRING_RIGHT = 10;
+
+    private static final int NOT_BOOLEAN = 11;
+
+    private static final int AND_BOOLEAN = 12;
+    private static final int OR_BOOLEAN = 13;
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        // Numeric subtrees are already evaluated without boxing.
+        if (expr.numeric) {
+            return evaluateDouble(expr);
+        }
+
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        switch (expr.specialization) {
+            case ADD_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left + (double) right;
+                }
+                break;
+            case GREATER_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left > (double) right;
+                }
+                break;
+            case GREATER_EQUAL_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left >= (double) right;
+                }
+                break;
+            case LESS_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left < (double) right;
+                }
+                break;
+            case LESS_EQUAL_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double) left <= (double) right;
+                }
+                break;
+            case EQUAL_NUMBERS:
+                // Double.compare agrees with Double.equals, which is what
+                // isEqual uses (NaN equals itself, 0.0 differs from -0.0).
+                if (left instanceof Double && right instanceof Double) {
+                    return Double.compare((double) left, (double) right) == 0;
+                }
+                break;
+            case NOT_EQUAL_NUMBERS:
+                if (left instanceof Double && right instanceof Double) {
+                    return Double.compare((double) left, (double) right) != 0;
+                }
+                break;
+            case CONCAT_STRING_LEFT:
+                if (LoxRope.isString(left)) {
+                    return LoxRope.concat(left, right);
+                }
+                break;
+            case CONCAT_STRING_RIGHT:
+                if (LoxRope.isString(right)) {
+                    return LoxRope.concat(left, right);
+                }
+                break;
+            case UNINITIALIZED:
+                expr.specialization = specializeBinary(expr.operator.type,
+                    left, right);
+                return binaryOperation(expr.operator, left, right);
+            default:
+                return binaryOperation(expr.operator, left, right);
+        }
+
+        expr.specialization = GENERIC;
+        return binaryOperation(expr.operator, left, right);
+    }
+
+    private static int specializeBinary(TokenType operator, Object left,
+            Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS: return ADD_NUMBERS;
+                case GREATER: return GREATER_NUMBERS;
+                case GREATER_EQUAL: return GREATER_EQUAL_NUMBERS;
+                case LESS: return LESS_NUMBERS;
+                case LESS_EQUAL: return LESS_EQUAL_NUMBERS;
+                case EQUAL_EQUAL: return EQUAL_NUMBERS;
+                case BANG_EQUAL: return NOT_EQUAL_NUMBERS;
+                default: return GENERIC;
+            }
+        }
+        if (operator == TokenType.PLUS && LoxRope.isString(left)) {
+            return CONCAT_STRING_LEFT;
+        }
+        if (operator == TokenType.PLUS && LoxRope.isString(right)) {
+            return CONCAT_STRING_RIGHT;
+        }
+        return GENERIC;
+    }
+
+    @Override
+    public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.numeric) {
+            return evaluateDouble(expr);
+        }
+
+        Object value = evaluate(expr.right);
+
+        switch (expr.specialization) {
+            case NOT_BOOLEAN:
+                if (value instanceof Boolean) {
+                    return !(boolean) value;
+                }
+                break;
+            case UNINITIALIZED:
+                if (expr.operator.type == TokenType.BANG &&
+                        value instanceof Boolean) {
+                    expr.specialization = NOT_BOOLEAN;
+                } else {
+                    expr.specialization = GENERIC;
+                }
+                return unaryOperation(expr.operator, value);
+            default:
+                return unaryOperation(expr.operator, value);
+        }
+
+        expr.specialization = GENERIC;
+        return unaryOperation(expr.operator, value);
+    }
+
+    @Override
+    public Object visitLogicalExpr(Expr.Logical expr) {
+        Object left = evaluate(expr.left);
+
+        switch (expr.specialization) {
+            case AND_BOOLEAN:
+                if (left instanceof Boolean) {
+                    return (boolean) left ? evaluate(expr.right) : left;
+                }
+                break;
+            case OR_BOOLEAN:
+                if (left instanceof Boolean) {
+                    return (boolean) left ? left : evaluate(expr.right);
+                }
+                break;
+            case UNINITIALIZED:
+                if (left instanceof Boolean) {
+                    expr.specialization = expr.operator.type == TokenType.AND ?
+                        AND_BOOLEAN : OR_BOOLEAN;
+                } else {
+                    expr.specialization = GENERIC;
+                }
+                return logicalOperation(expr, left);
+            default:
+                return logicalOperation(expr, left);
+        }
+
+        expr.specialization = GENERIC;
+        return logicalOperation(expr, left);
+    }
+}
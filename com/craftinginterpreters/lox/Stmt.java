@@ -10,6 +10,7 @@ abstract class Stmt {
         R visitPrintStmt(Print stmt);
         R visitIfStmt(If stmt);
         R visitWhileStmt(While stmt);
+        R visitForStmt(For stmt);
         R visitBreakStmt(Break stmt);
         R visitContinueStmt(Continue stmt);
         R visitReturnStmt(Return stmt);
@@ -17,8 +18,11 @@ abstract class Stmt {
         R visitFunctionStmt(Function stmt);
         R visitClassStmt(Class stmt);
         R visitBlockStmt(Block stmt);
+        R visitImportStmt(Import stmt);
     }
 
+    int line = -1;
+
     static class Expression extends Stmt {
         final Expr expression;
 
@@ -84,6 +88,39 @@ abstract class Stmt {
             return visitor.visitWhileStmt(this);
         }
     }
+    static class For extends Stmt {
+        final Token name;
+        final Expr initializer;
+        final Token comparison;
+        final Expr limit;
+        final Token increment;
+        final Expr step;
+        final Stmt body;
+        boolean hasClosures = false;
+
+        For(
+            Token name,
+            Expr initializer,
+            Token comparison,
+            Expr limit,
+            Token increment,
+            Expr step,
+            Stmt body
+        ) {
+            this.name = name;
+            this.initializer = initializer;
+            this.comparison = comparison;
+            this.limit = limit;
+            this.increment = increment;
+            this.step = step;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+    }
     static class Break extends Stmt {
         final Token keyword;
 
@@ -132,6 +169,9 @@ abstract class Stmt {
     static class Var extends Stmt {
         final Token name;
         final Expr initializer;
+        int slot = -1;
+        int assignments = 0;
+        boolean captured = false;
 
         Var(
             Token name,
@@ -150,6 +190,13 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        int localCount = 0;
+        boolean hasClosures = false;
+        int hotness = 0;
+        int nonNumeric = 0;
+        CompiledFunction compiled = null;
+        int firstLine = -1;
 
         Function(
             Token name,
@@ -170,6 +217,7 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
 
         Class(
             Token name,
@@ -188,6 +236,8 @@ abstract class Stmt {
     }
     static class Block extends Stmt {
         final List<Stmt> statements;
+        int localCount = 0;
+        boolean hasClosures = false;
 
         Block(
             List<Stmt> statements
@@ -200,6 +250,24 @@ abstract class Stmt {
             return visitor.visitBlockStmt(this);
         }
     }
+    static class Import extends Stmt {
+        final Token keyword;
+        final Token path;
+        Module module = null;
+
+        Import(
+            Token keyword,
+            Token path
+        ) {
+            this.keyword = keyword;
+            this.path = path;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitImportStmt(this);
+        }
+    }
 
     abstract <R> R accept(Visitor<R> visitor);
 }
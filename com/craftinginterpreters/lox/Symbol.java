@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+// An interned identifier. The Scanner creates exactly one Symbol per
+// distinct name, so the runtime tables keyed by names (globals, methods and
+// shapes) compare keys by identity, with a hash computed once here, and never
+// look at the characters again.
+final class Symbol {
+    // Open addressing with linear probing. Lookups read the table without
+    // locking: symbols are immutable, and a reader that misses a symbol
+    // being added, or reads a table being replaced, just takes the lock and
+    // looks again.
+    private static volatile Symbol[] table = new Symbol[1024];
+    private static int count = 0;
+
+    final String name;
+    private final int hash;
+
+    private Symbol(String name, int hash) {
+        this.name = name;
+        this.hash = hash;
+    }
+
+    static Symbol intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    // Returns the symbol for the characters source[start, end). A String for
+    // the name is only created the first time it is seen.
+    static Symbol intern(char[] source, int start, int end) {
+        // Same hash as String.hashCode().
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source[i];
+        }
+
+        Symbol symbol = find(table, source, start, end, hash);
+        if (symbol != null) return symbol;
+        return add(source, start, end, hash);
+    }
+
+    // Returns the matching symbol, or null. Each slot is read only once, as
+    // another thread may be filling it in.
+    private static Symbol find(Symbol[] symbols, char[] source, int start,
+            int end, int hash) {
+        int mask = symbols.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (Symbol symbol = symbols[index]; symbol != null;
+                symbol = symbols[index]) {
+            if (symbol.hash == hash && symbol.matches(source, start, end)) {
+                return symbol;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    private static synchronized Symbol add(char[] source, int start, int end,
+            int hash) {
+        // Another thread may have added it since the lookup.
+        Symbol symbol = find(table, source, start, end, hash);
+        if (symbol != null) return symbol;
+
+        // Only this thread writes the table now, so the first empty slot is
+        // still empty.
+        int mask = table.length - 1;
+        int index = (hash ^ (hash >>> 16)) & mask;
+        while (table[index] != null) {
+            index = (index + 1) & mask;
+        }
+        symbol = new Symbol(new String(source, start, end - start), hash);
+        table[index] = symbol;
+        count++;
+        // Keep the table at most half full.
+        if (count * 2 > table.length) {
+            grow();
+        }
+        return symbol;
+    }
+
+    private boolean matches(char[] source, int start, int end) {
+        if (name.length() != end - start) return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source[start + i]) return false;
+        }
+        return true;
+    }
+
+    private static void grow() {
+        Symbol[] old = table;
+        Symbol[] symbols = new Symbol[old.length * 2];
+        int mask = symbols.length - 1;
+        for (Symbol symbol : old) {
+            if (symbol == null) continue;
+            int index = (symbol.hash ^ (symbol.hash >>> 16)) & mask;
+            while (symbols[index] != null) {
+                index = (index + 1) & mask;
+            }
+            symbols[index] = symbol;
+        }
+        // Readers only ever see the old table or the complete new one.
+        table = symbols;
+    }
+
+    // equals() is inherited from Object: two symbols are the same name only
+    // if they are the same object.
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
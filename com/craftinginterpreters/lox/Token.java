@@ -6,11 +6,25 @@ public class Token {
     final Object literal;
     final int line;
 
+    // The interned lexeme of identifiers, used to look names up at runtime.
+    // Null for other tokens.
+    final Symbol symbol;
+
     public Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = type == TokenType.IDENTIFIER ?
+            Symbol.intern(lexeme) : null;
+    }
+
+    Token(TokenType type, Symbol symbol, int line) {
+        this.type = type;
+        this.lexeme = symbol.name;
+        this.literal = null;
+        this.line = line;
+        this.symbol = symbol;
     }
 
     public String toString() {
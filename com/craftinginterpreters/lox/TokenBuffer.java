@@ -0,0 +1,126 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// Tokens stored as parallel arrays instead of one Token object each. A token
+// costs a byte for its type, ints for its line and source offset, and two
+// references: its lexeme, which the Scanner shares between all tokens with
+// the same text, and its value (the literal of a string or number, or the
+// Symbol of an identifier). Token objects are only created for the tokens
+// the parser asks for with get().
+//
+// A buffer is either filled up front with add(), or fed by a Scanner as
+// tokens are asked for. In the latter case it only keeps a window of the
+// stream: once it runs out of room it drops every token before the one
+// preceding the last index asked for, so callers may only look back one
+// token.
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private byte[] types;
+    private int[] lines;
+    private int[] offsets;
+    private String[] lexemes;
+    private Object[] values;
+
+    // The index of the token in slot 0, and the number of slots in use.
+    private int base = 0;
+    private int count = 0;
+
+    // Where more tokens come from, or null once it has run out.
+    private Scanner scanner;
+
+    TokenBuffer() {
+        this(null);
+    }
+
+    TokenBuffer(Scanner scanner) {
+        this.scanner = scanner;
+        types = new byte[1024];
+        lines = new int[1024];
+        offsets = new int[1024];
+        lexemes = new String[1024];
+        values = new Object[1024];
+    }
+
+    void add(TokenType type, String lexeme, Object value, int line,
+            int offset) {
+        if (count == types.length) {
+            grow();
+        }
+        types[count] = (byte) type.ordinal();
+        lines[count] = line;
+        offsets[count] = offset;
+        lexemes[count] = lexeme;
+        values[count] = value;
+        count++;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    int line(int index) {
+        return lines[slot(index)];
+    }
+
+    // Where the token starts in the source.
+    int offset(int index) {
+        return offsets[slot(index)];
+    }
+
+    Object literal(int index) {
+        int slot = slot(index);
+        return types[slot] == TokenType.IDENTIFIER.ordinal() ?
+            null : values[slot];
+    }
+
+    Token get(int index) {
+        int slot = slot(index);
+        TokenType type = TYPES[types[slot]];
+        if (type == TokenType.IDENTIFIER) {
+            return new Token(type, (Symbol) values[slot], lines[slot]);
+        }
+        return new Token(type, lexemes[slot], values[slot], lines[slot]);
+    }
+
+    private int slot(int index) {
+        while (index >= base + count && scanner != null) {
+            if (count == types.length) {
+                // Keep the token before this one for previous().
+                discard(index - 1 - base);
+            }
+            if (!scanner.scanNext(this)) {
+                scanner = null;
+            }
+        }
+        return index - base;
+    }
+
+    // Drops the first `dropped` slots, or makes room by growing if there is
+    // nothing to drop.
+    private void discard(int dropped) {
+        if (dropped <= 0) {
+            grow();
+            return;
+        }
+        count -= dropped;
+        System.arraycopy(types, dropped, types, 0, count);
+        System.arraycopy(lines, dropped, lines, 0, count);
+        System.arraycopy(offsets, dropped, offsets, 0, count);
+        System.arraycopy(lexemes, dropped, lexemes, 0, count);
+        System.arraycopy(values, dropped, values, 0, count);
+        Arrays.fill(lexemes, count, count + dropped, null);
+        Arrays.fill(values, count, count + dropped, null);
+        base += dropped;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lexemes = Arrays.copyOf(lexemes, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+}
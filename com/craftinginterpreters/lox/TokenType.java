@@ -18,7 +18,7 @@ enum TokenType {
     // Keywords
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR,
     PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
-    BREAK, CONTINUE,
+    BREAK, CONTINUE, IMPORT,
 
     EOF
 }
\ No newline at end of file
@@ -0,0 +1,778 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Stack-based virtual machine that runs the output of BytecodeCompiler. It is
+// an alternative to the tree-walking Interpreter (see `--engine=vm`) and
+// behaves the same, including its runtime error messages.
+//
+// Numbers on the stack are not boxed: their slot in `stack` holds NUMBER and
+// the value is in the same slot of `numbers`. Locals, globals, upvalues and
+// the fields of instances keep them that way, so arithmetic on them allocates
+// nothing. They are only boxed where they leave the VM's own storage, like as
+// the argument of a native function.
+class VM {
+    private static class CallFrame {
+        VmClosure closure;
+        int ip;
+        // Stack index of slot zero of the frame.
+        int base;
+        // Stack index where the return value goes. This is `base` for plain
+        // calls and `base - 1` for calls prepared by LOAD_METHOD, which occupy
+        // one more slot below the frame.
+        int returnSlot;
+    }
+
+    private static final int FRAMES_MAX = 1 << 16;
+
+    // Pushed by LOAD_METHOD in place of a method when the property turned out
+    // to be a field, so CALL_METHOD calls the field's value instead.
+    private static final Object NO_METHOD = new Object();
+
+    static final Object NUMBER = new Object();
+
+    private static final Symbol INIT = Symbol.intern("init");
+
+    private Object[] stack = new Object[1024];
+    private double[] numbers = new double[1024];
+    private int sp = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    private VmUpvalue openUpvalues = null;
+
+    private final Map<String, VmGlobal> globals = new HashMap<>();
+
+    VM() {
+        define("clock", new LoxCallable() {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments,
+                    Token paren) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+
+            @Override
+            public int arity() {
+                return 0;
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private void define(String name, Object value) {
+        global(name).value = value;
+    }
+
+    // The global variable `name`, which need not be defined yet.
+    VmGlobal global(String name) {
+        VmGlobal global = globals.get(name);
+        if (global == null) {
+            global = new VmGlobal(name);
+            globals.put(name, global);
+        }
+        return global;
+    }
+
+    void interpret(VmFunction script) {
+        VmClosure closure = new VmClosure(script);
+        push(closure);
+        try {
+            call(closure, 0, 0, 0);
+            run();
+        } catch (RuntimeError e) {
+            Lox.runtimeError(e);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void grow() {
+        stack = Arrays.copyOf(stack, sp * 2);
+        numbers = Arrays.copyOf(numbers, sp * 2);
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) grow();
+        if (value instanceof Double) {
+            stack[sp] = NUMBER;
+            numbers[sp] = (double) value;
+        } else {
+            stack[sp] = value;
+        }
+        sp++;
+    }
+
+    private void pushNumber(double value) {
+        if (sp == stack.length) grow();
+        stack[sp] = NUMBER;
+        numbers[sp] = value;
+        sp++;
+    }
+
+    // Pushes a copy of the value in `slot`.
+    private void pushSlot(int slot) {
+        if (sp == stack.length) grow();
+        stack[sp] = stack[slot];
+        numbers[sp] = numbers[slot];
+        sp++;
+    }
+
+    // The value in `slot`, boxed if it is a number.
+    private Object value(int slot) {
+        Object value = stack[slot];
+        return value == NUMBER ? (Object) numbers[slot] : value;
+    }
+
+    // Popped slots are not cleared here; RETURN clears a whole frame at once.
+    private Object pop() {
+        return value(--sp);
+    }
+
+    // The value `distance` slots below the top, without boxing: NUMBER for
+    // numbers.
+    private Object peek(int distance) {
+        return stack[sp - 1 - distance];
+    }
+
+    private RuntimeError error(String msg) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), msg);
+    }
+
+    // Checks that the top two values are numbers.
+    private void checkNumberOperands() {
+        if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) {
+            throw error("Operands must be numbers.");
+        }
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OpCode.CONSTANT: {
+                    int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    push(constants[index]);
+                    break;
+                }
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.POP: sp--; break;
+
+                case OpCode.GET_LOCAL:
+                    pushSlot(base + (code[ip++] & 0xff));
+                    break;
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+
+                case OpCode.GET_GLOBAL: {
+                    VmGlobal global = (VmGlobal) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (global.value == VmGlobal.UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + global.name +
+                            "'.");
+                    }
+                    if (sp == stack.length) grow();
+                    stack[sp] = global.value;
+                    numbers[sp] = global.number;
+                    sp++;
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    VmGlobal global = (VmGlobal) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    sp--;
+                    global.value = stack[sp];
+                    global.number = numbers[sp];
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    VmGlobal global = (VmGlobal) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (global.value == VmGlobal.UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + global.name +
+                            "'.");
+                    }
+                    global.value = stack[sp - 1];
+                    global.number = numbers[sp - 1];
+                    break;
+                }
+
+                case OpCode.GET_UPVALUE: {
+                    VmUpvalue upvalue =
+                        frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        pushSlot(upvalue.slot);
+                    } else {
+                        if (sp == stack.length) grow();
+                        stack[sp] = upvalue.closed;
+                        numbers[sp] = upvalue.closedNumber;
+                        sp++;
+                    }
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    VmUpvalue upvalue =
+                        frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                        numbers[upvalue.slot] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                        upvalue.closedNumber = numbers[sp - 1];
+                    }
+                    break;
+                }
+
+                case OpCode.GET_PROPERTY: {
+                    VmPropertyCache cache = (VmPropertyCache) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = peek(0);
+                    if (!(object instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have properties.");
+                    }
+                    VmInstance instance = (VmInstance) object;
+                    int index = cache.field(instance);
+                    if (index >= 0) {
+                        stack[sp - 1] = instance.fields[index];
+                        numbers[sp - 1] = instance.numbers[index];
+                        break;
+                    }
+                    VmClosure method = cache.method(instance);
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + cache.name +
+                            "'.");
+                    }
+                    stack[sp - 1] = new VmBoundMethod(instance, method);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    VmPropertyCache cache = (VmPropertyCache) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!(peek(1) instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have fields.");
+                    }
+                    cache.set((VmInstance) peek(1), stack[sp - 1],
+                        numbers[sp - 1]);
+                    // The value replaces the instance.
+                    stack[sp - 2] = stack[sp - 1];
+                    numbers[sp - 2] = numbers[sp - 1];
+                    sp--;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    VmPropertyCache cache = (VmPropertyCache) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = cache.method((VmClass) pop());
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined method '" + cache.name + "'.");
+                    }
+                    push(new VmBoundMethod(pop(), method));
+                    break;
+                }
+
+                case OpCode.EQUAL: {
+                    boolean result;
+                    if (stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) {
+                        // Like Double.equals(), which isEqual() uses.
+                        result = Double.doubleToLongBits(numbers[sp - 2]) ==
+                            Double.doubleToLongBits(numbers[sp - 1]);
+                        sp -= 2;
+                    } else {
+                        Object b = pop();
+                        Object a = pop();
+                        result = Interpreter.isEqual(a, b);
+                    }
+                    push(result);
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL: {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    sp -= 2;
+                    double left = numbers[sp];
+                    double right = numbers[sp + 1];
+                    boolean result;
+                    if (instruction == OpCode.GREATER) {
+                        result = left > right;
+                    } else if (instruction == OpCode.GREATER_EQUAL) {
+                        result = left >= right;
+                    } else if (instruction == OpCode.LESS) {
+                        result = left < right;
+                    } else {
+                        result = left <= right;
+                    }
+                    push(result);
+                    break;
+                }
+                case OpCode.ADD: {
+                    if (stack[sp - 1] == NUMBER && stack[sp - 2] == NUMBER) {
+                        sp--;
+                        numbers[sp - 1] += numbers[sp];
+                        break;
+                    }
+                    Object b = pop();
+                    Object a = pop();
+                    if (LoxRope.isString(a) || LoxRope.isString(b)) {
+                        push(LoxRope.concat(a, b));
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must both be numbers or some " +
+                            "of them have to be a String");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    frame.ip = ip;
+                    checkNumberOperands();
+                    sp--;
+                    double left = numbers[sp - 1];
+                    double right = numbers[sp];
+                    if (instruction == OpCode.SUBTRACT) {
+                        numbers[sp - 1] = left - right;
+                    } else if (instruction == OpCode.MULTIPLY) {
+                        numbers[sp - 1] = left * right;
+                    } else {
+                        if (right == 0.0) {
+                            throw error("Cannot divide by zero.");
+                        }
+                        numbers[sp - 1] = left / right;
+                    }
+                    break;
+                }
+                case OpCode.NOT:
+                    // NUMBER is truthy, like every number.
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE: {
+                    if (stack[sp - 1] != NUMBER) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+                }
+
+                case OpCode.PRINT:
+                    System.out.println(Interpreter.stringify(pop()));
+                    break;
+
+                case OpCode.JUMP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 + offset;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (!Interpreter.isTruthy(peek(0))) {
+                        ip += offset;
+                    }
+                    break;
+                }
+                case OpCode.LOOP: {
+                    int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2 - offset;
+                    break;
+                }
+
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int calleeSlot = sp - argCount - 1;
+                    callValue(stack[calleeSlot], argCount, calleeSlot,
+                        calleeSlot);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.LOAD_METHOD: {
+                    VmPropertyCache cache = (VmPropertyCache) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    Object object = peek(0);
+                    if (!(object instanceof VmInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instances have properties.");
+                    }
+                    VmInstance instance = (VmInstance) object;
+                    VmClosure method = cache.method(instance);
+                    if (method != null) {
+                        stack[sp - 1] = method;
+                        push(instance);
+                        break;
+                    }
+                    int index = cache.field(instance);
+                    if (index < 0) {
+                        frame.ip = ip;
+                        throw error("Undefined property '" + cache.name +
+                            "'.");
+                    }
+                    stack[sp - 1] = NO_METHOD;
+                    if (sp == stack.length) grow();
+                    stack[sp] = instance.fields[index];
+                    numbers[sp] = instance.numbers[index];
+                    sp++;
+                    break;
+                }
+                case OpCode.LOAD_SUPER_METHOD: {
+                    VmPropertyCache cache = (VmPropertyCache) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = cache.method((VmClass) pop());
+                    if (method == null) {
+                        frame.ip = ip;
+                        throw error("Undefined method '" + cache.name + "'.");
+                    }
+                    Object receiver = pop();
+                    push(method);
+                    push(receiver);
+                    break;
+                }
+                case OpCode.CALL_METHOD: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int receiverSlot = sp - argCount - 1;
+                    Object method = stack[receiverSlot - 1];
+                    if (method == NO_METHOD) {
+                        callValue(stack[receiverSlot], argCount, receiverSlot,
+                            receiverSlot - 1);
+                    } else {
+                        call((VmClosure) method, argCount, receiverSlot,
+                            receiverSlot - 1);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int calleeSlot = sp - argCount - 1;
+                    Object callee = stack[calleeSlot];
+                    if (callee instanceof VmClosure) {
+                        tailCall(frame, (VmClosure) callee, argCount,
+                            calleeSlot);
+                    } else if (callee instanceof VmBoundMethod) {
+                        VmBoundMethod bound = (VmBoundMethod) callee;
+                        stack[calleeSlot] = bound.receiver;
+                        tailCall(frame, bound.method, argCount, calleeSlot);
+                    } else {
+                        callValue(callee, argCount, calleeSlot, calleeSlot);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.TAIL_CALL_METHOD: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    int receiverSlot = sp - argCount - 1;
+                    Object method = stack[receiverSlot - 1];
+                    if (method == NO_METHOD) {
+                        Object callee = stack[receiverSlot];
+                        if (callee instanceof VmClosure) {
+                            tailCall(frame, (VmClosure) callee, argCount,
+                                receiverSlot);
+                        } else {
+                            callValue(callee, argCount, receiverSlot,
+                                receiverSlot - 1);
+                        }
+                    } else {
+                        tailCall(frame, (VmClosure) method, argCount,
+                            receiverSlot);
+                    }
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLOSURE: {
+                    VmFunction function = (VmFunction) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure closure = new VmClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = code[ip++] & 0xff;
+                        if (isLocal) {
+                            closure.upvalues[i] =
+                                captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    pop();
+                    break;
+
+                case OpCode.RETURN: {
+                    sp--;
+                    Object result = stack[sp];
+                    double number = numbers[sp];
+                    closeUpvalues(frame.base);
+                    frameCount--;
+                    Arrays.fill(stack, frame.returnSlot, sp + 1, null);
+                    sp = frame.returnSlot;
+                    if (frameCount == 0) {
+                        return;
+                    }
+                    // The callee's slots make room for it.
+                    stack[sp] = result;
+                    numbers[sp] = number;
+                    sp++;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+
+                case OpCode.CLASS: {
+                    String name = (String) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    push(new VmClass(name));
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    Object superclass = peek(1);
+                    if (!(superclass instanceof VmClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass) pop();
+                    subclass.methods.putAll(((VmClass) superclass).methods);
+                    subclass.initializer = ((VmClass) superclass).initializer;
+                    break;
+                }
+                case OpCode.IMPORT: {
+                    Module module = (Module) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (module.executed) {
+                        push(null);
+                        break;
+                    }
+                    // Run the module's script like a call without arguments.
+                    // It returns nil in place of the closure.
+                    module.executed = true;
+                    frame.ip = ip;
+                    push(new VmClosure(module.function));
+                    call((VmClosure) peek(0), 0, sp - 1, sp - 1);
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    Symbol name = (Symbol) constants[
+                        ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    VmClosure method = (VmClosure) pop();
+                    VmClass klass = (VmClass) peek(0);
+                    klass.methods.put(name, method);
+                    if (name == INIT) {
+                        klass.initializer = method;
+                    }
+                    break;
+                }
+
+                default:
+                    throw new IllegalStateException(
+                        "Unknown opcode " + instruction + ".");
+            }
+        }
+    }
+
+    private void callValue(Object callee, int argCount, int base,
+            int returnSlot) {
+        if (callee instanceof VmClosure) {
+            call((VmClosure) callee, argCount, base, returnSlot);
+        } else if (callee instanceof VmBoundMethod) {
+            VmBoundMethod bound = (VmBoundMethod) callee;
+            stack[base] = bound.receiver;
+            call(bound.method, argCount, base, returnSlot);
+        } else if (callee instanceof VmClass) {
+            VmClass klass = (VmClass) callee;
+            VmInstance instance = new VmInstance(klass);
+            stack[base] = instance;
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount, base, returnSlot);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments, but got " + argCount + ".");
+            } else {
+                completeNativeCall(instance, returnSlot);
+            }
+        } else if (callee instanceof LoxCallable) {
+            LoxCallable function = (LoxCallable) callee;
+            if (argCount != function.arity()) {
+                throw error("Expected " + function.arity() +
+                    " arguments, but got " + argCount + ".");
+            }
+            List<Object> arguments = new ArrayList<>(argCount);
+            for (int i = 1; i <= argCount; i++) {
+                arguments.add(value(base + i));
+            }
+            completeNativeCall(function.call(null, arguments, null),
+                returnSlot);
+        } else {
+            throw error("Expression is not callable.");
+        }
+    }
+
+    // Replaces the callee and its arguments with the result of a call that
+    // did not push a frame.
+    private void completeNativeCall(Object result, int returnSlot) {
+        Arrays.fill(stack, returnSlot, sp, null);
+        sp = returnSlot;
+        push(result);
+    }
+
+    private void call(VmClosure closure, int argCount, int base,
+            int returnSlot) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                " arguments, but got " + argCount + ".");
+        }
+
+        if (frameCount == frames.length) {
+            if (frameCount == FRAMES_MAX) {
+                throw error("Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = base;
+        frame.returnSlot = returnSlot;
+    }
+
+    // Runs `closure` in `frame`, the frame of the function calling it in
+    // tail position, so that tail calls take no stack. The callee, or the
+    // receiver, and the arguments at `slot` move down to the bottom of the
+    // frame, after the upvalues that point into it are closed. The result
+    // still goes where the frame's caller expects it.
+    private void tailCall(CallFrame frame, VmClosure closure, int argCount,
+            int slot) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                " arguments, but got " + argCount + ".");
+        }
+
+        closeUpvalues(frame.base);
+        System.arraycopy(stack, slot, stack, frame.base, argCount + 1);
+        System.arraycopy(numbers, slot, numbers, frame.base, argCount + 1);
+        int top = frame.base + argCount + 1;
+        Arrays.fill(stack, top, sp, null);
+        sp = top;
+
+        frame.closure = closure;
+        frame.ip = 0;
+    }
+
+    private VmUpvalue captureUpvalue(int slot) {
+        VmUpvalue previous = null;
+        VmUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        VmUpvalue created = new VmUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            VmUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.closedNumber = numbers[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
+    }
+}
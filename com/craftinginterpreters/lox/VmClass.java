@@ -0,0 +1,30 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmClass {
+    final String name;
+
+    // Own and inherited methods. INHERIT copies the superclass's methods in
+    // before the class's own are added, so lookups never walk the
+    // superclass chain.
+    final Map<Symbol, VmClosure> methods = new HashMap<>();
+    VmClosure initializer;
+
+    // Shape of instances that have no fields yet.
+    final Shape rootShape = new Shape(null);
+
+    VmClass(String name) {
+        this.name = name;
+    }
+
+    VmClosure findMethod(Symbol name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+// A compiled function body. Closures created from it at runtime share the
+// chunk and only differ in their captured upvalues.
+class VmFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    VmFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            return "<script>";
+        }
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// A global variable of the VM. BytecodeCompiler puts the variable itself in
+// the constant pool of the code that uses it, so the VM never looks a global
+// up by name. Holds its value like a stack slot does: numbers unboxed in
+// `number`, with `value` set to VM.NUMBER. `value` is UNDEFINED until the
+// variable is defined.
+class VmGlobal {
+    static final Object UNDEFINED = new Object();
+
+    final String name;
+    Object value = UNDEFINED;
+    double number;
+
+    VmGlobal(String name) {
+        this.name = name;
+    }
+}
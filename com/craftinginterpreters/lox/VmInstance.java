@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+class VmInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+    private static final double[] NO_NUMBERS = new double[0];
+
+    final VmClass klass;
+
+    // Where each field is stored in `fields`, like in LoxInstance. Both
+    // change together whenever a new field is added. Numbers are kept
+    // unboxed like on the VM's stack: their field holds VM.NUMBER and the
+    // value is in `numbers`.
+    Shape shape;
+    Object[] fields;
+    double[] numbers;
+
+    VmInstance(VmClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        int capacity = shape.initialCapacity();
+        this.fields = capacity == 0 ? NO_FIELDS : new Object[capacity];
+        this.numbers = capacity == 0 ? NO_NUMBERS : new double[capacity];
+    }
+
+    // Moves the instance to `next`, which must be its current shape plus one
+    // field, and stores that field's value.
+    void addField(Shape next, Object value, double number) {
+        if (next.fieldCount > fields.length) {
+            int capacity = Math.max(next.fieldCount, next.initialCapacity());
+            fields = Arrays.copyOf(fields, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+        }
+        fields[next.fieldCount - 1] = value;
+        numbers[next.fieldCount - 1] = number;
+        shape = next;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,103 @@
+package com.craftinginterpreters.lox;
+
+// Inline cache of a single property instruction of the VM, its counterpart
+// of PropertyCache. The BytecodeCompiler gives every GET_PROPERTY,
+// SET_PROPERTY, LOAD_METHOD, GET_SUPER and LOAD_SUPER_METHOD a cache of its
+// own in the chunk's constants, in place of the property's name. It keeps
+// the outcome of the lookup for the last few shapes seen by the
+// instruction; `super` accesses look methods up by the root shape of the
+// superclass.
+final class VmPropertyCache {
+    // Beyond this many shapes the instruction is megamorphic and stops
+    // caching.
+    private static final int MAX_ENTRIES = 4;
+
+    final Symbol name;
+
+    private final Shape[] shapes = new Shape[MAX_ENTRIES];
+    // Field index, or -1 when the property is not a field.
+    private final int[] indices = new int[MAX_ENTRIES];
+    // The method, or null when the property is a field or doesn't exist.
+    private final VmClosure[] methods = new VmClosure[MAX_ENTRIES];
+    // Shape after the assignment; differs from `shapes` when a set adds the
+    // field (sets only).
+    private final Shape[] targets = new Shape[MAX_ENTRIES];
+    private int size = 0;
+
+    VmPropertyCache(Symbol name) {
+        this.name = name;
+    }
+
+    // The index of the field in `instance.fields`, or -1 if it has no such
+    // field.
+    int field(VmInstance instance) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return indices[i];
+        }
+        int index = shape.indexOf(name);
+        VmClosure method = index >= 0 ? null : instance.klass.findMethod(name);
+        add(shape, index, method, null);
+        return index;
+    }
+
+    // The method of the instance's class, or null if it has none or a field
+    // of the same name hides it.
+    VmClosure method(VmInstance instance) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return methods[i];
+        }
+        int index = shape.indexOf(name);
+        VmClosure method = index >= 0 ? null : instance.klass.findMethod(name);
+        add(shape, index, method, null);
+        return method;
+    }
+
+    // The method of `superclass`, or null if it has none.
+    VmClosure method(VmClass superclass) {
+        Shape shape = superclass.rootShape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return methods[i];
+        }
+        VmClosure method = superclass.findMethod(name);
+        if (method != null) add(shape, -1, method, null);
+        return method;
+    }
+
+    // Stores `value`, or `number` if that is VM.NUMBER.
+    void set(VmInstance instance, Object value, double number) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (targets[i] == shape) {
+                    instance.fields[indices[i]] = value;
+                    instance.numbers[indices[i]] = number;
+                } else {
+                    instance.addField(targets[i], value, number);
+                }
+                return;
+            }
+        }
+
+        int index = shape.indexOf(name);
+        if (index >= 0) {
+            add(shape, index, null, shape);
+            instance.fields[index] = value;
+            instance.numbers[index] = number;
+        } else {
+            Shape next = shape.withField(name);
+            add(shape, next.fieldCount - 1, null, next);
+            instance.addField(next, value, number);
+        }
+    }
+
+    private void add(Shape shape, int index, VmClosure method, Shape target) {
+        if (size == MAX_ENTRIES) return;
+        shapes[size] = shape;
+        indices[size] = index;
+        methods[size] = method;
+        targets[size] = target;
+        size++;
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+// A captured variable. While the variable still lives on the VM stack `slot`
+// points at it; once the frame that declared it is left, the value is moved
+// into `closed` and `slot` is set to -1. Numbers are moved like a stack slot
+// holds them: unboxed in `closedNumber`, with `closed` set to VM.NUMBER.
+class VmUpvalue {
+    int slot;
+    Object closed;
+    double closedNumber;
+    VmUpvalue next;
+
+    VmUpvalue(int slot, VmUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
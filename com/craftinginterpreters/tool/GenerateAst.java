@@ -14,42 +14,64 @@ public class GenerateAst {
         }
         String outputDir = args[0];
 
-        defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign : Token name, Expr value",
-            "Binary : Expr left, Token operator, Expr right",
+        // Each type is "Name : constructor fields | mutable fields". The
+        // mutable fields (with their initial value) are not set by the
+        // constructor but filled in by later passes, e.g. the Resolver.
+        // Mutable fields of the base class are shared by every type.
+        defineAst(outputDir, "Expr", "", Arrays.asList(
+            "Assign : Token name, Expr value | int depth = -1, int slot = -1",
+            "Binary : Expr left, Token operator, Expr right" +
+                " | int specialization = 0, boolean numeric = false",
             "Ternary : Expr left, Token leftOperator, Expr middle, " +
                 "Token rightOperator, Expr right",
-            "Grouping : Expr expression",
+            "Grouping : Expr expression | boolean numeric = false",
             "Literal : Object value",
-            "Logical : Expr left, Token operator, Expr right",
-            "Unary : Token operator, Expr right",
-            "Call : Expr callee, Token paren, List<Expr> arguments",
-            "Get : Expr object, Token name",
-            "Set : Expr object, Token name, Expr value",
-            "This : Token keyword",
-            "Super : Token keyword, Token method",
-            "Variable : Token name"
+            "Logical : Expr left, Token operator, Expr right" +
+                " | int specialization = 0",
+            "Unary : Token operator, Expr right" +
+                " | int specialization = 0, boolean numeric = false",
+            "Call : Expr callee, Token paren, List<Expr> arguments" +
+                " | boolean tail = false, CallCache cache = new CallCache()",
+            "Get : Expr object, Token name" +
+                " | PropertyCache cache = new PropertyCache()",
+            "Set : Expr object, Token name, Expr value" +
+                " | PropertyCache cache = new PropertyCache()",
+            "This : Token keyword | int depth = -1, int slot = -1",
+            "Super : Token keyword, Token method | int depth = -1",
+            "Variable : Token name | int depth = -1, int slot = -1"
         ));
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
+        // The line the statement starts at, which the Resolver and AstReader
+        // fill in for the Profiler.
+        defineAst(outputDir, "Stmt", "int line = -1", Arrays.asList(
             "Expression : Expr expression",
             "Print : Expr expression",
             "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While : Expr condition, Stmt body",
+            "For : Token name, Expr initializer, Token comparison, " +
+                "Expr limit, Token increment, Expr step, Stmt body" +
+                " | boolean hasClosures = false",
             "Break : Token keyword",
             "Continue : Token keyword",
             "Return : Token keyword, Expr value",
-            "Var : Token name, Expr initializer",
-            "Function : Token name, List<Token> params, List<Stmt> body",
+            "Var : Token name, Expr initializer" +
+                " | int slot = -1, int assignments = 0, boolean captured = false",
+            "Function : Token name, List<Token> params, List<Stmt> body" +
+                " | int slot = -1, int localCount = 0," +
+                " boolean hasClosures = false, int hotness = 0," +
+                " int nonNumeric = 0, CompiledFunction compiled = null," +
+                " int firstLine = -1",
             "Class : Token name, Expr.Variable superclass, " +
-                "List<Stmt.Function> methods",
-            "Block : List<Stmt> statements"
+                "List<Stmt.Function> methods | int slot = -1",
+            "Block : List<Stmt> statements" +
+                " | int localCount = 0, boolean hasClosures = false",
+            "Import : Token keyword, Token path | Module module = null"
         ));
     }
 
     // Writes a java file with the full hierarchy.
     private static void defineAst(String outputDir, String baseName,
-            List<String> types) throws IOException {
+            String baseFields, List<String> types) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -64,12 +86,23 @@ public class GenerateAst {
         defineVisitor(writer, baseName, types);
         writer.println();
 
+        if (!baseFields.isEmpty()) {
+            for (String baseField : baseFields.split(",")) {
+                writer.println("    " + baseField.trim() + ";");
+            }
+            writer.println();
+        }
+
         for (String type : types) {
             String[] split = type.split(":");
             String className = split[0].trim();
-            String[] fieldDecls = split.length > 1 ?
-                split[1].trim().split(",") : new String[0];
-            defineType(writer, baseName, className, fieldDecls);
+            String[] fields = split.length > 1 ?
+                split[1].split("\\|") : new String[0];
+            String[] fieldDecls = fields.length > 0 ?
+                fields[0].trim().split(",") : new String[0];
+            String[] mutableDecls = fields.length > 1 ?
+                fields[1].trim().split(",") : new String[0];
+            defineType(writer, baseName, className, fieldDecls, mutableDecls);
         }
 
         // The base `accept` method. All subclasses must implement it (simply
@@ -95,7 +128,7 @@ public class GenerateAst {
     // Writes a single type in the hierarchy with fields and a constructor that
     // initializes them.
     private static void defineType(PrintWriter writer, String baseName,
-            String className, String[] fieldDecls) {
+            String className, String[] fieldDecls, String[] mutableDecls) {
         writer.println("    static class " + className + " extends "
             + baseName + " {");
         
@@ -104,6 +137,9 @@ public class GenerateAst {
             String[] split = fieldDecl.trim().split(" ");
             writer.println("        final " + split[0] + " " + split[1] + ";");
         }
+        for (String mutableDecl : mutableDecls) {
+            writer.println("        " + mutableDecl.trim() + ";");
+        }
         
         // Constructor
         writer.println();
@@ -0,0 +1 @@
+<script>:16;outer:12;inner:6